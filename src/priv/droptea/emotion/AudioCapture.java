@@ -0,0 +1,275 @@
+package priv.droptea.emotion;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import priv.droptea.emotion.io.TarsosDSPAudioFloatConverter;
+import priv.droptea.emotion.io.TarsosDSPAudioFormat;
+import priv.droptea.emotion.io.TarsosDSPAudioInputStream;
+import priv.droptea.emotion.util.FloatRingBuffer;
+
+/**
+ * Reads an audio stream on its own thread and hands the converted samples to
+ * the dispatcher through lock free ring buffers. Capture keeps pace with the
+ * device even when a processor is slow: the ring buffer absorbs the delay up
+ * to the latency budget, beyond that incoming samples are dropped and counted
+ * instead of stalling the device.
+ * <p>
+ * In planar mode there is one ring buffer per channel, otherwise one ring
+ * buffer with the samples in the same layout as the dispatcher float buffer.
+ * </p>
+ * 采集线程：持续从音频源读取数据，转换成float后放入环形缓冲区，由分发线程取出处理
+ */
+class AudioCapture implements CaptureSource, Runnable {
+
+	private static final Logger LOG = Logger.getLogger(AudioCapture.class.getName());
+
+	/**
+	 * How long the consumer sleeps when waiting for data.
+	 */
+	private static final long PARK_NANOS = 500000;
+
+	private final TarsosDSPAudioInputStream audioInputStream;
+
+	private final TarsosDSPAudioFormat format;
+
+	private final TarsosDSPAudioFloatConverter converter;
+
+	private final FloatRingBuffer[] rings;
+
+	private final boolean planar;
+
+	/**
+	 * Number of frames read from the stream per iteration of the capture
+	 * thread.
+	 */
+	private final int blockSize;
+
+	private final byte[] byteBlock;
+
+	private final float[][] floatBlock;
+
+	private volatile boolean stopped;
+
+	private volatile long droppedSamples;
+
+	/**
+	 * The gaps left by dropped input: the number of samples written before
+	 * the gap and the number dropped. Only added to when input is dropped.
+	 */
+	private final Queue<long[]> gaps = new ConcurrentLinkedQueue<long[]>();
+
+	/**
+	 * Samples written by the capture thread.
+	 */
+	private long samplesWritten;
+
+	/**
+	 * Samples read and skipped by the dispatcher thread, and the dropped
+	 * samples before them.
+	 */
+	private long samplesConsumed, droppedBeforeRead;
+
+	private Thread thread;
+
+	/**
+	 * The dispatcher thread, woken up when new data arrives.
+	 */
+	private volatile Thread consumer;
+
+	/**
+	 * @param stream
+	 *            The stream to capture.
+	 * @param planar
+	 *            True to fill one ring buffer per channel.
+	 * @param blockSize
+	 *            The number of frames read from the stream at once.
+	 * @param latencyBudget
+	 *            The number of samples (frames in planar mode) that can be
+	 *            buffered before input is dropped.
+	 */
+	AudioCapture(TarsosDSPAudioInputStream stream, boolean planar, int blockSize, int latencyBudget) {
+		this.audioInputStream = stream;
+		this.format = stream.getFormat();
+		this.converter = TarsosDSPAudioFloatConverter.getSharedConverter(format);
+		this.planar = planar;
+		this.blockSize = blockSize;
+		int channels = planar ? format.getChannels() : 1;
+		rings = new FloatRingBuffer[channels];
+		for (int c = 0; c < channels; c++) {
+			rings[c] = new FloatRingBuffer(Math.max(latencyBudget, blockSize));
+		}
+		byteBlock = new byte[blockSize * format.getFrameSize()];
+		floatBlock = new float[channels][planar ? blockSize : blockSize * format.getChannels()];
+	}
+
+	@Override
+	public void start() {
+		thread = new Thread(this, "Audio capture");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MAX_PRIORITY);
+		thread.start();
+	}
+
+	@Override
+	public void stop() {
+		stopped = true;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!stopped) {
+				int bytesRead;
+				try {
+					bytesRead = audioInputStream.read(byteBlock, 0, byteBlock.length);
+				} catch (IndexOutOfBoundsException e) {
+					bytesRead = -1;
+				}
+				if (bytesRead == -1) {
+					break;
+				}
+				int frames = bytesRead / format.getFrameSize();
+				int samples;
+				if (planar) {
+					samples = frames;
+					converter.toFloatArrays(byteBlock, 0, floatBlock, 0, frames);
+				} else {
+					samples = frames * format.getChannels();
+					converter.toFloatArray(byteBlock, 0, floatBlock[0], 0, samples);
+				}
+				// write the same amount to every channel so they stay aligned
+				int written = samples;
+				for (FloatRingBuffer ring : rings) {
+					written = Math.min(written, ring.remaining());
+				}
+				for (int c = rings.length - 1; c >= 0; c--) {
+					rings[c].write(floatBlock[c], 0, written);
+				}
+				samplesWritten += written;
+				if (written < samples) {
+					// the newest input is dropped, the gap comes after what is waiting
+					gaps.add(new long[] { samplesWritten, samples - written });
+					droppedSamples += samples - written;
+				}
+				LockSupport.unpark(consumer);
+			}
+		} catch (IOException e) {
+			if (!stopped) {
+				LOG.log(Level.WARNING, "Error while capturing audio: " + e.getMessage(), e);
+			}
+		} finally {
+			for (FloatRingBuffer ring : rings) {
+				ring.close();
+			}
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	/**
+	 * Reads samples from the ring buffers, waiting until the requested amount
+	 * is available, the capture ended or the dispatcher stops. Called by the
+	 * dispatcher thread only.
+	 *
+	 * @param targets
+	 *            The target buffers, one per ring buffer.
+	 * @param offset
+	 *            Where to start writing in each target buffer.
+	 * @param length
+	 *            The number of samples (frames in planar mode) to read.
+	 * @return The number of samples read, less than length at the end of the
+	 *         stream.
+	 */
+	@Override
+	public int read(float[][] targets, int offset, int length) {
+		consumer = Thread.currentThread();
+		int total = 0;
+		while (total < length && !stopped) {
+			int read = length - total;
+			for (FloatRingBuffer ring : rings) {
+				read = Math.min(read, ring.available());
+			}
+			for (int c = 0; c < rings.length; c++) {
+				rings[c].read(targets[c], offset + total, read);
+			}
+			total += read;
+			samplesConsumed += read;
+			if (total < length) {
+				if (rings[0].isClosed() && getQueuedSamples() == 0) {
+					break;
+				}
+				if (read == 0) {
+					LockSupport.parkNanos(this, PARK_NANOS);
+				}
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Discards the oldest waiting samples of every channel. Called by the
+	 * dispatcher thread only.
+	 *
+	 * @param length
+	 *            The number of samples (frames in planar mode) to discard.
+	 * @return The number of samples actually discarded.
+	 */
+	@Override
+	public int skip(int length) {
+		int skip = Math.min(length, getQueuedSamples());
+		for (FloatRingBuffer ring : rings) {
+			ring.skip(skip);
+		}
+		samplesConsumed += skip;
+		return skip;
+	}
+
+	/**
+	 * @return The number of samples (frames in planar mode) waiting to be
+	 *         processed.
+	 */
+	@Override
+	public int getQueuedSamples() {
+		int queued = Integer.MAX_VALUE;
+		for (FloatRingBuffer ring : rings) {
+			queued = Math.min(queued, ring.available());
+		}
+		return queued;
+	}
+
+	/**
+	 * @return The number of samples dropped because the latency budget was
+	 *         exceeded.
+	 */
+	@Override
+	public long getDroppedSamples() {
+		return droppedSamples;
+	}
+
+	@Override
+	public long getDroppedBeforeRead() {
+		long[] gap;
+		while ((gap = gaps.peek()) != null && gap[0] <= samplesConsumed) {
+			droppedBeforeRead += gap[1];
+			gaps.poll();
+		}
+		return droppedBeforeRead;
+	}
+
+	/**
+	 * @return True if the capture thread ended, the rest of the data can still
+	 *         be read without waiting.
+	 */
+	@Override
+	public boolean isFinished() {
+		return rings[0].isClosed();
+	}
+
+	int getBlockSize() {
+		return blockSize;
+	}
+}
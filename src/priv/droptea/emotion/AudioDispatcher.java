@@ -25,11 +25,23 @@
 package priv.droptea.emotion;
 
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import priv.droptea.emotion.AudioEvent.DataForAnalysisInWaveformChart;
 import priv.droptea.emotion.io.TarsosDSPAudioFloatConverter;
 import priv.droptea.emotion.io.TarsosDSPAudioFormat;
@@ -53,6 +65,43 @@ public class AudioDispatcher implements Runnable {
 	 */
 	private static final Logger LOG = Logger.getLogger(AudioDispatcher.class.getName());
 
+	/**
+	 * What the dispatcher does when more input is waiting than the maximum
+	 * latency allows, see {@link AudioDispatcher#setMaxLatency(int, OverrunPolicy)}.
+	 * 处理跟不上实时输入时的策略
+	 */
+	public enum OverrunPolicy {
+		/**
+		 * Keep all waiting input, only when the capture ring buffer is full
+		 * the newest input is dropped. The delay grows up to the latency
+		 * budget of the capture thread.
+		 */
+		DROP_NEWEST,
+		/**
+		 * Drop the oldest waiting samples until the delay is back at the
+		 * maximum latency.
+		 */
+		DROP_OLDEST,
+		/**
+		 * Drop whole steps of the oldest waiting input, so the latency goes
+		 * down in multiples of the step size.
+		 */
+		SKIP_FRAME
+	}
+	
+	/**
+	 * Called on the dispatcher thread when more input is waiting than the
+	 * maximum latency allows, before the overrun policy is applied. Use it to
+	 * make the processing chain cheaper.
+	 */
+	public interface OverrunListener {
+		/**
+		 * @param queuedSamples The number of samples (frames in planar mode) waiting.
+		 * @param maxLatency The maximum latency in samples.
+		 */
+		void overrun(int queuedSamples, int maxLatency);
+	}
+
 	/**
 	 * The audio stream (in bytes), conversion to float happens at the last
 	 * moment.
@@ -66,6 +115,174 @@ public class AudioDispatcher implements Runnable {
 	 */
 	private float[] audioFloatBuffer;
 
+	/**
+	 * In planar mode the audio data is deinterleaved while converting: one
+	 * float array per channel. The first channel doubles as
+	 * <code>audioFloatBuffer</code>. Null when not in planar mode.
+	 */
+	private float[][] audioChannelBuffers;
+
+	/**
+	 * If true the dispatcher sends planar (one buffer per channel) audio
+	 * events. Buffer sizes and overlap are then expressed in frames.
+	 */
+	private boolean planar;
+	
+	private final float[][] singleFloatTarget = new float[1][];
+	
+	/**
+	 * The number of samples (frames in planar mode) in one audio block. The
+	 * float buffers can be larger, see <code>circular</code>.
+	 */
+	private int audioBufferSize;
+	
+	/**
+	 * If true the float buffers hold several blocks and the current block is a
+	 * window that moves forward through them: new samples are converted right
+	 * behind the previous block and the overlap stays where it is. Only when
+	 * the window reaches the end of the buffers, the overlap is moved back to
+	 * the start once.
+	 * 浮点缓冲区能容纳多块数据，每次只在末尾追加新数据，重叠区域不需要每次都复制
+	 */
+	private boolean circular;
+	
+	/**
+	 * The index of the first sample of the current block in the float buffers.
+	 * Always zero if not <code>circular</code> and not batching.
+	 */
+	private int windowStart;
+	
+	/**
+	 * In circular mode the float buffers hold this many blocks, at least one
+	 * more than a batch.
+	 */
+	private static final int CIRCULAR_BUFFER_BLOCKS = 4;
+	
+	/**
+	 * The maximum number of samples waiting in the capture ring buffer before
+	 * the overrun policy kicks in, zero for no limit.
+	 */
+	private int maxLatency;
+	
+	private OverrunPolicy overrunPolicy = OverrunPolicy.DROP_NEWEST;
+	
+	private OverrunListener overrunListener;
+	
+	/**
+	 * Counters of the overrun handling, only written by the dispatcher thread.
+	 */
+	private volatile long overruns, policyDroppedSamples, skippedFrames;
+	
+	private volatile int queuedSamples, peakQueuedSamples;
+	
+	/**
+	 * The samples dropped by the capture source that are already counted in
+	 * the stream position, see {@link CaptureSource#getDroppedBeforeRead()}.
+	 */
+	private long countedCaptureDrops;
+	
+	/**
+	 * Processing time per processor, only recorded when timing is enabled.
+	 */
+	private volatile boolean timingEnabled;
+	
+	private final ConcurrentMap<AudioProcessor, ProcessorTiming> processorTimings = new ConcurrentHashMap<AudioProcessor, ProcessorTiming>();
+	
+	private final ProcessorTiming chainTiming = new ProcessorTiming("chain");
+	
+	/**
+	 * Recycled events for the blocks, null to reuse <code>audioEvent</code>.
+	 */
+	private AudioEventPool eventPool;
+	
+	/**
+	 * Runs the chain through a method handle compiled from the processor
+	 * list, see {@link ProcessorChainCompiler}. Off until it is measured to
+	 * be faster than the loop.
+	 */
+	private volatile boolean chainCompilation = false;
+	
+	/**
+	 * Counts changes of the processor list, the compiled chain is rebuilt
+	 * when it is behind.
+	 */
+	private volatile int chainVersion;
+	
+	private int compiledVersion = -1;
+	
+	private MethodHandle compiledChain;
+	
+	/**
+	 * The maximum number of blocks processed in one pass of the chain.
+	 */
+	private int batchSize = 1;
+	
+	/**
+	 * The events of the current batch and whether the chain still runs for them.
+	 */
+	private AudioEvent[] batchEvents;
+	
+	private boolean[] batchProceed;
+	
+	/**
+	 * Events for batches when no event pool is set.
+	 */
+	private AudioEventPool batchPool;
+	
+	/**
+	 * The index in the batch of the block being read, zero for the first
+	 * block of a batch and when not batching.
+	 */
+	private int batchIndex;
+	
+	/**
+	 * Tells whether the stream holds the next block when the input is pushed
+	 * (see {@link PushFeeder}), null if the stream can always be read.
+	 */
+	private BooleanSupplier inputReady;
+	
+	/**
+	 * The most blocks the next batch may take, e.g. the demand of a
+	 * {@link DispatcherPublisher}, null for no limit besides the batch size.
+	 */
+	private LongSupplier batchLimit;
+	
+	/**
+	 * The number of blocks sent through the chain.
+	 */
+	private long blocksDispatched;
+	
+	/**
+	 * Lowers the quality of the chain when blocks come close to their deadline, null if not set.
+	 */
+	private DeadlineScheduler deadlineScheduler;
+	
+	/**
+	 * The name under which the timings are registered as MBeans, null if they are not registered.
+	 */
+	private String mBeanName;
+	
+	/**
+	 * True once a block has been read, from then on a new buffer size is
+	 * applied before the next block.
+	 */
+	private boolean blockRead;
+	
+	/**
+	 * A buffer size and overlap set while running, applied before the next
+	 * block is read.
+	 */
+	private boolean resizePending;
+	
+	private int pendingBufferSize, pendingOverlap;
+	
+	/**
+	 * When set, a separate thread reads the stream and the dispatcher takes
+	 * converted samples from its ring buffer. Null if the dispatcher reads the
+	 * stream itself.
+	 */
+	private CaptureSource capture;
+
 	/**
 	 * This buffer is reused again and again to store audio data using the byte
 	 * data type.
@@ -143,6 +360,18 @@ public class AudioDispatcher implements Runnable {
 	 * processors must be prepared to handle shorter audio buffers.
 	 */
 	private boolean zeroPadLastBuffer;
+	
+	/**
+	 * If true every event carries the data for the waveform charts, see
+	 * {@link #setWaveformChartData(boolean)}.
+	 */
+	private boolean waveformChartData;
+	
+	/**
+	 * The chart data of the events, refilled for every block. Copies of an
+	 * event get their own chart data, see {@link AudioEvent#retain()}.
+	 */
+	private DataForAnalysisInWaveformChart chartData;
 
 	private int seekLength;
 
@@ -173,8 +402,9 @@ public class AudioDispatcher implements Runnable {
 		audioEvent = new AudioEvent(format);
 		audioEvent.setFloatBuffer(audioFloatBuffer);
 		audioEvent.setOverlap(bufferOverlap);
+		audioEvent.setFrameLength(stream.getFrameLength());
 		
-		converter = TarsosDSPAudioFloatConverter.getConverter(format);
+		converter = TarsosDSPAudioFloatConverter.getSharedConverter(format);
 		
 		stopped = false;
 		
@@ -192,9 +422,12 @@ public class AudioDispatcher implements Runnable {
 	}
 	
 	/**
-	 * Set a new step size and overlap size. Both in number of samples. Watch
-	 * out with this method: it should be called after a batch of samples is
-	 * processed, not during.
+	 * Set a new step size and overlap size. Both in number of samples. While
+	 * the dispatcher runs the change takes effect when the next block is read:
+	 * the buffers are only reallocated when they are too small, and the last
+	 * samples of the current block become the overlap of the next block, so
+	 * changing the sizes block after block (e.g. a tempo sweep) neither
+	 * allocates nor leaves a gap in the audio.
 	 * 
 	 * @param audioBufferSize
 	 *            The size of the buffer defines how much samples are processed
@@ -204,13 +437,220 @@ public class AudioDispatcher implements Runnable {
 	 *            AudioBufferSize is common (512, 1024) for an FFT.
 	 */
 	public void setStepSizeAndOverlap(final int audioBufferSize, final int bufferOverlap){
-		audioFloatBuffer = new float[audioBufferSize];
+		if(blockRead){
+			// processors may still read the current block, resize before the next one
+			pendingBufferSize = audioBufferSize;
+			pendingOverlap = bufferOverlap;
+			resizePending = true;
+		}else{
+			resizeBuffers(audioBufferSize, bufferOverlap, false);
+		}
+	}
+	
+	/**
+	 * Applies a new buffer size and overlap. The float buffers are kept if
+	 * the buffer layout did not change and they have the block size, or are
+	 * large enough for a moving window. The byte buffer is kept if it is
+	 * large enough.
+	 * @param keepHistory true to copy the end of the current block to the
+	 *            overlap region, where the next block starts.
+	 */
+	private void resizeBuffers(final int audioBufferSize, final int bufferOverlap, boolean keepHistory){
+		int capacity = isWindowMoving() ? audioBufferSize * Math.max(CIRCULAR_BUFFER_BLOCKS, batchSize + 1) : audioBufferSize;
+		int channels = planar ? format.getChannels() : 1;
+		float[][] current = audioFloatBuffer == null ? null : floatTargets();
+		boolean sameLayout = current != null && current.length == channels && (planar == (audioChannelBuffers != null));
+		// samples carried over, less than the overlap if the old block was shorter
+		int keep = 0;
+		if(keepHistory && sameLayout && audioFloatBuffer.length >= windowStart + this.audioBufferSize){
+			keep = Math.min(bufferOverlap, this.audioBufferSize);
+		}
+		int historyEnd = windowStart + this.audioBufferSize;
+		
+		float[][] targets;
+		// a moving window only grows; otherwise the event is the whole buffer, so it has the exact block size
+		if(!sameLayout || (isWindowMoving() ? audioFloatBuffer.length < capacity : audioFloatBuffer.length != capacity)){
+			targets = new float[channels][capacity];
+		}else{
+			targets = current;
+		}
+		for(int c = 0; c < targets.length; c++){
+			if(keep > 0){
+				System.arraycopy(current[c], historyEnd - keep, targets[c], bufferOverlap - keep, keep);
+			}
+			if(targets == current){
+				Arrays.fill(targets[c], 0, bufferOverlap - keep, 0);
+			}
+		}
+		if(planar){
+			audioChannelBuffers = targets;
+		}else{
+			audioChannelBuffers = null;
+		}
+		audioFloatBuffer = targets[0];
+		
+		this.audioBufferSize = audioBufferSize;
+		windowStart = 0;
 		floatOverlap = bufferOverlap;
-		floatStepSize = audioFloatBuffer.length - floatOverlap;
+		floatStepSize = audioBufferSize - floatOverlap;
 
-		audioByteBuffer = new byte[audioFloatBuffer.length * format.getFrameSize()];
+		int byteBufferSize = audioBufferSize * format.getFrameSize();
+		if(audioByteBuffer == null || audioByteBuffer.length < byteBufferSize){
+			audioByteBuffer = new byte[byteBufferSize];
+		}
 		byteOverlap = floatOverlap * format.getFrameSize();
 		byteStepSize = floatStepSize * format.getFrameSize();
+		resizePending = false;
+	}
+	
+	/**
+	 * Switches planar mode on or off. In planar mode the bytes read from the
+	 * stream are deinterleaved during conversion and each audio event carries
+	 * one float array per channel (see {@link AudioEvent#getChannelBuffers()}),
+	 * buffer size and overlap count frames instead of samples. Call this
+	 * before the dispatcher starts running.
+	 * @param planar true to dispatch one buffer per channel.
+	 */
+	public void setPlanar(boolean planar){
+		this.planar = planar;
+		setStepSizeAndOverlap(audioBufferSize, floatOverlap);
+		updateAudioEventBuffers(audioBufferSize);
+	}
+	
+	/**
+	 * Switches circular mode on or off. In circular mode the float buffers
+	 * hold several blocks and the overlap is not shifted to the front of the
+	 * buffer for every block, only the new samples are converted. Audio events
+	 * are then a view on the buffers (see {@link AudioEvent#isView()}):
+	 * processors that read the samples in place use
+	 * {@link AudioEvent#getFloatBufferArray()} and
+	 * {@link AudioEvent#getBufferOffset()}. This saves most of the copying when
+	 * the overlap is large compared to the step size. Call this before the
+	 * dispatcher starts running.
+	 * @param circular true to move a window over the buffers instead of shifting samples.
+	 */
+	public void setCircularBuffer(boolean circular){
+		this.circular = circular;
+		setStepSizeAndOverlap(audioBufferSize, floatOverlap);
+		updateAudioEventBuffers(audioBufferSize);
+	}
+	
+	/**
+	 * @return True if the float buffers hold several blocks and events are views.
+	 */
+	public boolean isCircularBuffer(){
+		return circular;
+	}
+	
+	/**
+	 * @return True if the current block is a window that moves through the
+	 *         float buffers: in circular mode and when batching, where all
+	 *         blocks of a batch stay in the buffers until it is processed.
+	 */
+	private boolean isWindowMoving(){
+		return circular || batchSize > 1;
+	}
+	
+	/**
+	 * @return True if audio events carry one float buffer per channel.
+	 */
+	public boolean isPlanar(){
+		return planar;
+	}
+	
+	/**
+	 * Reads the stream on a separate capture thread instead of on the
+	 * dispatcher thread. The capture thread converts the audio and passes it
+	 * on through a lock free ring buffer, so a slow processor no longer stalls
+	 * the input device. If processing falls behind more than the latency
+	 * budget the newest input is dropped, see {@link #getDroppedSamples()}.
+	 * A smaller delay is kept with {@link #setMaxLatency(int, OverrunPolicy)}.
+	 * Call this before the dispatcher starts running, after
+	 * {@link #setPlanar(boolean)}.
+	 * 
+	 * @param blockSize
+	 *            The number of frames the capture thread reads at once, e.g.
+	 *            the buffer size of the input line.
+	 * @param latencyBudget
+	 *            The maximum number of samples (frames in planar mode) waiting
+	 *            to be processed.
+	 */
+	public void setCaptureThread(int blockSize, int latencyBudget){
+		capture = new AudioCapture(audioInputStream, planar, blockSize, latencyBudget);
+	}
+	
+	/**
+	 * Takes the input from a capture shared with other dispatchers, see
+	 * {@link BroadcastCapture#newDispatcher(int, int)}.
+	 */
+	void setCaptureSource(CaptureSource source){
+		capture = source;
+	}
+	
+	/**
+	 * Bounds the delay between capture and processing. When more input is
+	 * waiting than the maximum latency, the overrun listener is called and
+	 * the policy decides which input is dropped. After a drop the overlap of
+	 * the next block is read from the input again, from right before its new
+	 * samples, so every block is a continuous piece of the input. Only has an
+	 * effect with a capture thread, see {@link #setCaptureThread(int, int)}.
+	 * 
+	 * @param maxLatency
+	 *            The maximum number of samples (frames in planar mode)
+	 *            waiting to be processed, zero for no limit.
+	 * @param policy
+	 *            What to drop when the limit is exceeded.
+	 */
+	public void setMaxLatency(int maxLatency, OverrunPolicy policy){
+		this.maxLatency = maxLatency;
+		this.overrunPolicy = policy;
+	}
+	
+	/**
+	 * @param listener Called for every block read while the delay is above the maximum latency, null for none.
+	 */
+	public void setOverrunListener(OverrunListener listener){
+		this.overrunListener = listener;
+	}
+	
+	/**
+	 * @return The number of input samples dropped, by the capture thread
+	 *         because processing fell behind more than the latency budget or
+	 *         by the overrun policy.
+	 */
+	public long getDroppedSamples(){
+		return policyDroppedSamples + (capture == null ? 0 : capture.getDroppedSamples());
+	}
+	
+	/**
+	 * @return The number of blocks read while more input was waiting than the
+	 *         maximum latency.
+	 */
+	public long getOverruns(){
+		return overruns;
+	}
+	
+	/**
+	 * @return The number of steps dropped by {@link OverrunPolicy#SKIP_FRAME}.
+	 */
+	public long getSkippedFrames(){
+		return skippedFrames;
+	}
+	
+	/**
+	 * @return The number of samples (frames in planar mode) that were
+	 *         waiting in the capture ring buffer when the last block was read.
+	 */
+	public int getQueuedSamples(){
+		return queuedSamples;
+	}
+	
+	/**
+	 * @return The largest number of samples waiting in the capture ring
+	 *         buffer so far.
+	 */
+	public int getPeakQueuedSamples(){
+		return peakQueuedSamples;
 	}
 	
 	/**
@@ -233,6 +673,17 @@ public class AudioDispatcher implements Runnable {
 		this.zeroPadLastBuffer = zeroPadLastBuffer;
 	}
 	
+	/**
+	 * Lets every event carry a copy of the samples it was read with and the
+	 * overlap, for waveform charts (see
+	 * {@link AudioEvent#getDataForAnalysisInWaveformChart()}). Off by
+	 * default, the copy is only made when a chart uses it.
+	 * @param waveformChartData true to fill in the chart data for every block.
+	 */
+	public void setWaveformChartData(boolean waveformChartData) {
+		this.waveformChartData = waveformChartData;
+	}
+	
 
 	/**
 	 * Adds an AudioProcessor to the chain of processors.
@@ -242,6 +693,7 @@ public class AudioDispatcher implements Runnable {
 	 */
 	public void addAudioProcessor(final AudioProcessor audioProcessor) {
 		audioProcessors.add(audioProcessor);
+		chainVersion++;
 		LOG.fine("Added an audioprocessor to the list of processors: " + audioProcessor.toString());
 	}
 	
@@ -253,69 +705,491 @@ public class AudioDispatcher implements Runnable {
 	 */
 	public void removeAudioProcessor(final AudioProcessor audioProcessor) {
 		audioProcessors.remove(audioProcessor);
+		chainVersion++;
+		ProcessorTiming timing = processorTimings.remove(audioProcessor);
+		if(timing != null && mBeanName != null){
+			try {
+				ObjectName objectName = objectName(audioProcessor, timing);
+				if(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)){
+					ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+				}
+			} catch (JMException e) {
+				LOG.log(Level.WARNING, "Could not unregister the timing of " + timing.getProcessorName(), e);
+			}
+		}
 		audioProcessor.processingFinished();
 		LOG.fine("Remove an audioprocessor to the list of processors: " + audioProcessor.toString());
 	}
 
 	public void run() {
-		
-		int bytesRead = 0;
-		
+		prepareDispatching();
+		while(dispatchNextBlock()){
+			// every block is processed inside dispatchNextBlock
+		}
+	}
+	
+	/**
+	 * Skips to the start position and starts the capture thread, if any.
+	 * Called once before the first block is dispatched.
+	 */
+	void prepareDispatching(){
 		if(bytesToSkip!=0){
 			skipToStart();
 		}
+		
+		if(capture != null){
+			capture.start();
+		}
+	}
 	
-		//Read the first (and in some cases last) audio block.
+	/**
+	 * Reads the next block and sends it through the processing chain. This is
+	 * one step of {@link #run()}, a {@link DispatcherPool} calls it when
+	 * {@link #isBlockReady()} to run many dispatchers on a few threads.
+	 * 
+	 * @return False if the stream ended or the dispatcher was stopped, the
+	 *         processors are finished then.
+	 */
+	boolean dispatchNextBlock(){
+		if(stopped){
+			// stopped from another thread, the stream is closed already
+			return false;
+		}
+		if(batchSize > 1){
+			return dispatchNextBatch();
+		}
+		int bytesRead;
+		// Read, convert and process consecutive overlapping buffers.
+		// Slide the buffer.
 		try {
 			//needed to get correct time info when skipping first x seconds
 			audioEvent.setBytesProcessed(bytesProcessed);
 			bytesRead = readNextAudioBlock();
 		} catch (IOException e) {
+			if(stopped){
+				// stop() closed the stream during the read
+				return false;
+			}
 			String message="Error while reading audio input stream: " + e.getMessage();	
 			LOG.warning(message);
 			throw new Error(message);
 		}
-
+		
 		// As long as the stream has not ended
-		while (bytesRead != 0 && !stopped) {
-			
-			//Makes sure the right buffers are processed, they can be changed by audio processors.
-			//将切分好的音频数据分发给各个自定义的音频处理器进行实时处理
+		if(bytesRead == 0 || stopped){
+			// Notify all processors that no more data is available. 
+			// when stop() is called processingFinished is called explicitly, no need to do this again.
+			// The explicit call is to prevent timing issues.
+			if(!stopped){
+				stop();
+			}
+			return false;
+		}
+		
+		//Makes sure the right buffers are processed, they can be changed by audio processors.
+		//将切分好的音频数据分发给各个自定义的音频处理器进行实时处理
+		// measured before the chain, processors may replace the buffer
+		long blockAudioNanos = timingEnabled || deadlineScheduler != null ? blockAudioNanos() : 0;
+		long chainStart = deadlineScheduler == null ? 0 : System.nanoTime();
+		// with a pool every block travels in its own event, which processors can retain;
+		// it points to the dispatcher buffers, only a retain copies the samples
+		final AudioEvent event;
+		if(eventPool != null){
+			event = eventPool.acquire();
+			event.shareFrom(audioEvent);
+		}else{
+			event = audioEvent;
+		}
+		if(timingEnabled){
+			processTimed(event, blockAudioNanos);
+		}else if(chainCompilation){
+			ProcessorChainCompiler.run(compiledChain(), event);
+		}else{
 			for (final AudioProcessor processor : audioProcessors) {
-				if(!processor.process(audioEvent)){
+				if(!processor.process(event)){
 					//skip to the next audio processors if false is returned.
 					break;
 				}	
 			}
-			
-			if(!stopped){			
-				//Update the number of bytes processed;
-				bytesProcessed += bytesRead;
-				
-					
-				// Read, convert and process consecutive overlapping buffers.
-				// Slide the buffer.
-				try {
-					audioEvent.setBytesProcessed(bytesProcessed);
-					bytesRead = readNextAudioBlock();
-					//audioEvent.setOverlap(floatOverlap);
-				} catch (IOException e) {
-					String message="Error while reading audio input stream: " + e.getMessage();	
-					LOG.warning(message);
-					throw new Error(message);
+		}
+		if(eventPool != null){
+			event.release();
+		}
+		blocksDispatched++;
+		if(deadlineScheduler != null){
+			deadlineScheduler.blockProcessed(System.nanoTime() - chainStart, blockAudioNanos);
+		}
+		
+		if(!stopped){			
+			//Update the number of bytes processed;
+			bytesProcessed += bytesRead;
+		}
+		return !stopped;
+	}
+	
+	/**
+	 * Reads up to <code>batchSize</code> blocks, each into its own event, and
+	 * sends them through the chain with
+	 * {@link AudioProcessor#processBatch(AudioEvent[], boolean[], int)}. After
+	 * the first block only blocks that are ready without waiting are added,
+	 * so live input is never held back to fill a batch.
+	 * 
+	 * @return False if the stream ended or the dispatcher was stopped.
+	 */
+	private boolean dispatchNextBatch(){
+		AudioEventPool pool = eventPool != null ? eventPool : batchPool;
+		boolean ended = false;
+		int count = 0;
+		long batchAudioNanos = 0;
+		// the first block is always read, the caller dispatches because it wants one
+		int limit = batchLimit == null ? batchSize : (int) Math.max(1, Math.min(batchSize, batchLimit.getAsLong()));
+		while(count < limit && (count == 0 || isBlockReady())){
+			int bytesRead;
+			batchIndex = count;
+			try {
+				audioEvent.setBytesProcessed(bytesProcessed);
+				bytesRead = readNextAudioBlock();
+			} catch (IOException e) {
+				if(stopped){
+					// stop() closed the stream during the read
+					ended = true;
+					break;
 				}
+				String message="Error while reading audio input stream: " + e.getMessage();	
+				LOG.warning(message);
+				throw new Error(message);
+			}
+			if(bytesRead == 0 || stopped){
+				ended = true;
+				break;
 			}
+			// the blocks of a batch lie one after the other in the buffers, see advanceWindow()
+			AudioEvent event = pool.acquire();
+			event.shareFrom(audioEvent);
+			batchEvents[count] = event;
+			batchProceed[count] = true;
+			batchAudioNanos += blockAudioNanos();
+			count++;
+			bytesProcessed += bytesRead;
 		}
-
-		// Notify all processors that no more data is available. 
-		// when stop() is called processingFinished is called explicitly, no need to do this again.
-		// The explicit call is to prevent timing issues.
-		if(!stopped){
-			stop();
+		batchIndex = 0;
+		
+		if(count > 0){
+			long chainStart = System.nanoTime();
+			long start = chainStart;
+			for (final AudioProcessor processor : audioProcessors) {
+				boolean proceed = processor.processBatch(batchEvents, batchProceed, count);
+				if(timingEnabled){
+					long end = System.nanoTime();
+					getProcessorTiming(processor).record(end - start, batchAudioNanos);
+					start = end;
+				}
+				if(!proceed){
+					break;
+				}
+			}
+			long chainEnd = System.nanoTime();
+			if(timingEnabled){
+				chainTiming.record(chainEnd - chainStart, batchAudioNanos);
+			}
+			if(deadlineScheduler != null){
+				deadlineScheduler.blockProcessed(chainEnd - chainStart, batchAudioNanos);
+			}
+			for(int i = 0 ; i < count ; i++){
+				batchEvents[i].release();
+				batchEvents[i] = null;
+			}
+			blocksDispatched += count;
+		}
+		
+		if(ended){
+			if(!stopped){
+				stop();
+			}
+			return false;
+		}
+		return !stopped;
+	}
+	
+	/**
+	 * Processes up to the given number of blocks in one pass of the chain:
+	 * every processor handles all blocks of the batch before the next
+	 * processor runs, see
+	 * {@link AudioProcessor#processBatch(AudioEvent[], boolean[], int)}. This
+	 * saves a call per processor and block at small block sizes. With a
+	 * capture thread a batch only takes the blocks that are already queued,
+	 * so batches grow when processing falls behind and add no latency
+	 * otherwise. A file is read a full batch at a time.
+	 * <p>
+	 * Every block of a batch travels in its own event, from the event pool if
+	 * one is set. The blocks stay in the float buffers until the batch is
+	 * processed, the events are views on them as in circular mode (see
+	 * {@link #setCircularBuffer(boolean)}), so reading a batch copies nothing.
+	 * A change of the block size by a processor applies from the next batch
+	 * on. Call this before the dispatcher starts running.
+	 * </p>
+	 * @param batchSize The maximum number of blocks per batch, 1 (the default) processes block by block.
+	 */
+	public void setBatchSize(int batchSize){
+		this.batchSize = Math.max(1, batchSize);
+		batchEvents = new AudioEvent[this.batchSize];
+		batchProceed = new boolean[this.batchSize];
+		if(this.batchSize > 1 && batchPool == null){
+			batchPool = new AudioEventPool(format, 4 * this.batchSize);
+		}
+		// room for the blocks of a batch
+		setStepSizeAndOverlap(audioBufferSize, floatOverlap);
+		updateAudioEventBuffers(audioBufferSize);
+	}
+	
+	/**
+	 * @return The chain compiled from the current processor list.
+	 */
+	private MethodHandle compiledChain(){
+		int version = chainVersion;
+		if(version != compiledVersion){
+			// a change during compilation raises the version again, the next block recompiles
+			compiledChain = ProcessorChainCompiler.compile(new ArrayList<AudioProcessor>(audioProcessors));
+			compiledVersion = version;
+		}
+		return compiledChain;
+	}
+	
+	/**
+	 * Runs the chain through one method handle compiled from the processor
+	 * list, instead of a loop that calls every processor from the same call
+	 * site. The handle is rebuilt when processors are added or removed. Off by
+	 * default, timing runs the loop because it measures between processors.
+	 * @param chainCompilation True to run the compiled chain.
+	 */
+	public void setChainCompilation(boolean chainCompilation){
+		this.chainCompilation = chainCompilation;
+	}
+	
+	/**
+	 * Runs the processing chain and records the time spent in every processor.
+	 * @param event The event to send through the chain.
+	 * @param blockAudioNanos The duration of the audio the block advances.
+	 */
+	private void processTimed(AudioEvent event, long blockAudioNanos){
+		long chainStart = System.nanoTime();
+		long start = chainStart;
+		for (final AudioProcessor processor : audioProcessors) {
+			boolean proceed = processor.process(event);
+			long end = System.nanoTime();
+			getProcessorTiming(processor).record(end - start, blockAudioNanos);
+			start = end;
+			if(!proceed){
+				//skip to the next audio processors if false is returned.
+				break;
+			}
+		}
+		chainTiming.record(start - chainStart, blockAudioNanos);
+	}
+	
+	/**
+	 * @return The duration of the audio the current block advances: the new
+	 *         samples, not the overlap. This is the real-time budget of the
+	 *         block.
+	 */
+	private long blockAudioNanos(){
+		int channels = planar ? 1 : format.getChannels();
+		return (long) ((audioEvent.getBufferSize() - audioEvent.getOverlap()) * 1e9 / (format.getSampleRate() * channels));
+	}
+	
+	/**
+	 * Sends every block through the chain in an event from the pool, instead
+	 * of in the one reused event. The event points to the dispatcher buffers,
+	 * nothing is copied for blocks nobody keeps. The first
+	 * {@link AudioEvent#retain()} copies the samples into pooled storage,
+	 * later retains of the block share it. Call this before the dispatcher
+	 * starts running.
+	 * @param pool The pool with the format of this dispatcher, null to reuse one event.
+	 */
+	public void setEventPool(AudioEventPool pool){
+		this.eventPool = pool;
+	}
+	
+	/**
+	 * Reports the processing time of every block to a scheduler which lowers
+	 * the quality of the chain under load.
+	 * @param scheduler The scheduler, null for none.
+	 */
+	public void setDeadlineScheduler(DeadlineScheduler scheduler){
+		this.deadlineScheduler = scheduler;
+	}
+	
+	/**
+	 * Records the processing time of every processor from now on. The
+	 * overhead is two calls to <code>System.nanoTime</code> per processor and
+	 * block.
+	 * @param timingEnabled true to record processing times.
+	 */
+	public void setTimingEnabled(boolean timingEnabled){
+		this.timingEnabled = timingEnabled;
+	}
+	
+	/**
+	 * @return True if processing times are recorded.
+	 */
+	public boolean isTimingEnabled(){
+		return timingEnabled;
+	}
+	
+	/**
+	 * @param processor A processor of this dispatcher.
+	 * @return The processing times of the processor. The timing is created
+	 *         on the first call, also while timing is not enabled (e.g. to
+	 *         register the MBeans), but only records times while it is
+	 *         enabled, see {@link #setTimingEnabled(boolean)}.
+	 */
+	public ProcessorTiming getProcessorTiming(AudioProcessor processor){
+		ProcessorTiming timing = processorTimings.get(processor);
+		if(timing == null){
+			String processorName = processor.getClass().getSimpleName();
+			if(processorName.isEmpty()){
+				// anonymous class
+				processorName = processor.getClass().getName();
+			}
+			ProcessorTiming created = new ProcessorTiming(processorName);
+			timing = processorTimings.putIfAbsent(processor, created);
+			if(timing == null){
+				timing = created;
+				registerMBean(processor, timing);
+			}
 		}
+		return timing;
+	}
+	
+	/**
+	 * @return The processing time of the whole chain per block. The real-time
+	 *         factor of the chain must stay below one to keep up with live
+	 *         input.
+	 */
+	public ProcessorTiming getChainTiming(){
+		return chainTiming;
 	}
 	
+	/**
+	 * Enables timing and registers the timings as MBeans with the platform
+	 * MBean server, under
+	 * <code>priv.droptea.emotion:type=AudioDispatcher,name=&lt;name&gt;,processor=&lt;class@id&gt;</code>.
+	 * Processors added later are registered when they first run. The MBeans
+	 * are unregistered when the dispatcher stops.
+	 * @param name A name unique among the dispatchers of the JVM.
+	 */
+	public void registerMBeans(String name){
+		mBeanName = name;
+		setTimingEnabled(true);
+		registerMBean(null, chainTiming);
+		for (final AudioProcessor processor : audioProcessors) {
+			getProcessorTiming(processor);
+		}
+	}
+	
+	private ObjectName objectName(AudioProcessor processor, ProcessorTiming timing) throws JMException{
+		String processorKey = processor == null ? timing.getProcessorName()
+				: timing.getProcessorName() + "@" + Integer.toHexString(System.identityHashCode(processor));
+		return new ObjectName("priv.droptea.emotion:type=AudioDispatcher,name=" + ObjectName.quote(mBeanName)
+				+ ",processor=" + ObjectName.quote(processorKey));
+	}
+	
+	private void registerMBean(AudioProcessor processor, ProcessorTiming timing){
+		if(mBeanName == null){
+			return;
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName objectName = objectName(processor, timing);
+			if(!server.isRegistered(objectName)){
+				server.registerMBean(timing, objectName);
+			}
+		} catch (JMException e) {
+			LOG.log(Level.WARNING, "Could not register the timing of " + timing.getProcessorName(), e);
+		}
+	}
 	
+	/**
+	 * Removes the MBeans registered by {@link #registerMBeans(String)}.
+	 */
+	public void unregisterMBeans(){
+		if(mBeanName == null){
+			return;
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			for (ObjectName objectName : server.queryNames(new ObjectName("priv.droptea.emotion:type=AudioDispatcher,name=" + ObjectName.quote(mBeanName) + ",*"), null)) {
+				server.unregisterMBean(objectName);
+			}
+		} catch (JMException e) {
+			LOG.log(Level.WARNING, "Could not unregister the timings of " + mBeanName, e);
+		}
+		mBeanName = null;
+	}
+	
+	/**
+	 * @return The event sent through the chain, reused for every block.
+	 */
+	AudioEvent getAudioEvent(){
+		return audioEvent;
+	}
+	
+	/**
+	 * Checks without blocking whether the next block can be read. Without a
+	 * capture thread the stream is read directly and this is always true,
+	 * unless the input is pushed, see {@link #setInputReadyCheck(BooleanSupplier)}.
+	 * 
+	 * @return True if {@link #dispatchNextBlock()} will not wait for input.
+	 */
+	boolean isBlockReady(){
+		if(stopped){
+			return true;
+		}
+		if(capture == null){
+			return inputReady == null || inputReady.getAsBoolean();
+		}
+		return capture.isFinished() || capture.getQueuedSamples() >= samplesNeeded();
+	}
+	
+	/**
+	 * For a stream that only holds what was pushed so far: a batch then only
+	 * takes the blocks the stream holds, instead of reading an empty stream.
+	 * @param inputReady True if the stream holds the next block or ended.
+	 */
+	void setInputReadyCheck(BooleanSupplier inputReady){
+		this.inputReady = inputReady;
+	}
+	
+	/**
+	 * For a consumer that takes a limited number of blocks: a batch then
+	 * takes no more blocks than the limit, at least one.
+	 * @param batchLimit Returns the most blocks the next batch may take.
+	 */
+	void setBatchLimit(LongSupplier batchLimit){
+		this.batchLimit = batchLimit;
+	}
+	
+	/**
+	 * @return The number of blocks sent through the chain, a batch counts
+	 *         every block.
+	 */
+	long getBlocksDispatched(){
+		return blocksDispatched;
+	}
+	
+	/**
+	 * @return The number of new samples (frames) the next block takes from
+	 *         the input.
+	 */
+	int samplesNeeded(){
+		if(!blockRead){
+			return zeroPadFirstBuffer ? floatStepSize : audioBufferSize;
+		}else if(resizePending){
+			return pendingBufferSize - pendingOverlap;
+		}
+		return floatStepSize;
+	}
+
 	private void skipToStart() {
 		long skipped = 0l;
 		try{
@@ -336,9 +1210,13 @@ public class AudioDispatcher implements Runnable {
 	 */
 	public void stop() {
 		stopped = true;
+		if(capture != null){
+			capture.stop();
+		}
 		for (final AudioProcessor processor : audioProcessors) {
 			processor.processingFinished();
 		}
+		unregisterMBeans();
 		try {
 			audioInputStream.close();
 		} catch (IOException e) {
@@ -365,15 +1243,33 @@ public class AudioDispatcher implements Runnable {
 	 *             been closed.
 	 */
 	private int readNextAudioBlock() throws IOException {
-		assert floatOverlap < audioFloatBuffer.length;
+		assert floatOverlap < audioBufferSize;
 		// Is this the first buffer?
 		//是否是第一块数据
 		boolean isFirstBuffer = (bytesProcessed ==0 || bytesProcessed == bytesToSkip);
+		if(isFirstBuffer){
+			windowStart = 0;
+		}
+		// The overlap is already in place after a resize
+		boolean overlapReady = false;
+		if(resizePending){
+			resizeBuffers(pendingBufferSize, pendingOverlap, !isFirstBuffer);
+			overlapReady = true;
+		}
 		//Shift the audio information using array copy since it is probably faster than manually shifting it.
 		// No need to do this on the first buffer
 		//如果不是第一块数据，会根据重叠区域大小，把上一块数据的末尾部分作为本块数据的头部进行填充，这部分数据作为重叠区域数据。
-		if(!isFirstBuffer && audioFloatBuffer.length == floatOverlap + floatStepSize ){
-			System.arraycopy(audioFloatBuffer,floatStepSize, audioFloatBuffer,0 ,floatOverlap);
+		// (not after a shortened last buffer)
+		if(!isFirstBuffer && !overlapReady && audioFloatBuffer.length >= audioBufferSize ){
+			if(isWindowMoving()){
+				advanceWindow();
+			}else if(planar){
+				for(float[] channelBuffer : audioChannelBuffers){
+					System.arraycopy(channelBuffer,floatStepSize, channelBuffer,0 ,floatOverlap);
+				}
+			}else{
+				System.arraycopy(audioFloatBuffer,floatStepSize, audioFloatBuffer,0 ,floatOverlap);
+			}
 			/*
 			for(int i = floatStepSize ; i < floatStepSize+floatOverlap ; i++){
 				audioFloatBuffer[i-floatStepSize] = audioFloatBuffer[i];
@@ -390,7 +1286,7 @@ public class AudioDispatcher implements Runnable {
 		if(isFirstBuffer && !zeroPadFirstBuffer){
 			//If this is the first buffer and we do not want to zero pad the
 			//first buffer then read a full buffer
-			bytesToRead =  audioByteBuffer.length;
+			bytesToRead =  audioBufferSize * format.getFrameSize();
 			// With an offset in bytes of zero;
 			offsetInBytes = 0;
 			offsetInSamples=0;
@@ -411,54 +1307,93 @@ public class AudioDispatcher implements Runnable {
 		//是否音频数据已经读取完成
 		boolean endOfStream = false;
 				
-		// Always try to read the 'bytesToRead' amount of bytes.
-		// unless the stream is closed (stopped is true) or no bytes could be read during one iteration 
-		//循环读取音频数据，直到填满w数组为止
-		while(!stopped && !endOfStream && totalBytesRead<bytesToRead){
-			try{
-				bytesRead = audioInputStream.read(audioByteBuffer, offsetInBytes + totalBytesRead , bytesToRead - totalBytesRead);
-			}catch(IndexOutOfBoundsException e){
-				// The pipe decoder generates an out of bounds if end
-				// of stream is reached. Ugly hack...
-				bytesRead = -1;
-			}
-			if(bytesRead == -1){
-				// The end of the stream is reached if the number of bytes read during this iteration equals -1
-				endOfStream = true;
-			}else{
-				// Otherwise add the number of bytes read to the total 
-				totalBytesRead += bytesRead;
+		if(capture != null){
+			// Keep the delay bounded before taking the next samples
+			handleOverrun(offsetInSamples);
+			// The capture thread already converted the samples, take them from its ring buffer.
+			int samplesToRead = bytesToRead / format.getFrameSize();
+			int samplesRead = capture.read(floatTargets(), windowStart + offsetInSamples, samplesToRead);
+			totalBytesRead = samplesRead * format.getFrameSize();
+			endOfStream = samplesRead < samplesToRead && !stopped;
+		}else{
+			// Always try to read the 'bytesToRead' amount of bytes.
+			// unless the stream is closed (stopped is true) or no bytes could be read during one iteration 
+			//循环读取音频数据，直到填满w数组为止
+			while(!stopped && !endOfStream && totalBytesRead<bytesToRead){
+				try{
+					bytesRead = audioInputStream.read(audioByteBuffer, offsetInBytes + totalBytesRead , bytesToRead - totalBytesRead);
+				}catch(IndexOutOfBoundsException e){
+					// The pipe decoder generates an out of bounds if end
+					// of stream is reached. Ugly hack...
+					bytesRead = -1;
+				}
+				if(bytesRead == -1){
+					// The end of the stream is reached if the number of bytes read during this iteration equals -1
+					endOfStream = true;
+				}else{
+					// Otherwise add the number of bytes read to the total 
+					totalBytesRead += bytesRead;
+				}
 			}
 		}
 		
+		// The number of samples in the block sent through the chain
+		int blockSize = audioBufferSize;
 		if(endOfStream){
+			int totalSamplesRead = totalBytesRead/format.getFrameSize();
 			// Could not read a full buffer from the stream, there are two options:
 			if(zeroPadLastBuffer){
 				//Make sure the last buffer has the same length as all other buffers and pad with zeros
-				for(int i = offsetInBytes + totalBytesRead; i < audioByteBuffer.length; i++){
-					audioByteBuffer[i] = 0;
+				if(capture != null){
+					for(float[] target : floatTargets()){
+						Arrays.fill(target, windowStart + offsetInSamples + totalSamplesRead, windowStart + audioBufferSize, 0);
+					}
+				}else{
+					for(int i = offsetInBytes + totalBytesRead; i < audioBufferSize * format.getFrameSize(); i++){
+						audioByteBuffer[i] = 0;
+					}
+					convertToFloat(offsetInBytes, windowStart + offsetInSamples, audioBufferSize - offsetInSamples);
 				}
-				converter.toFloatArray(audioByteBuffer, offsetInBytes, audioFloatBuffer, offsetInSamples, floatStepSize);
 			}else{
 				// Send a smaller buffer through the chain.
-				byte[] audioByteBufferContent = audioByteBuffer;
-				audioByteBuffer = new byte[offsetInBytes + totalBytesRead];
-				for(int i = 0 ; i < audioByteBuffer.length ; i++){
-					audioByteBuffer[i] = audioByteBufferContent[i];
+				int keep = offsetInSamples;
+				if(capture == null){
+					byte[] audioByteBufferContent = audioByteBuffer;
+					audioByteBuffer = new byte[offsetInBytes + totalBytesRead];
+					for(int i = 0 ; i < audioByteBuffer.length ; i++){
+						audioByteBuffer[i] = audioByteBufferContent[i];
+					}
+				}else{
+					// the samples read are already in the float buffer, keep them as well
+					keep += totalSamplesRead;
+				}
+				blockSize = offsetInSamples + totalSamplesRead;
+				if(planar){
+					float[][] audioChannelBuffersContent = audioChannelBuffers;
+					audioChannelBuffers = new float[audioChannelBuffersContent.length][blockSize];
+					for(int c = 0 ; c < audioChannelBuffers.length ; c++){
+						System.arraycopy(audioChannelBuffersContent[c], windowStart, audioChannelBuffers[c], 0, keep);
+					}
+					audioFloatBuffer = audioChannelBuffers[0];
+				}else{
+					float[] audioFloatBufferContent = audioFloatBuffer;
+					audioFloatBuffer = new float[blockSize];
+					System.arraycopy(audioFloatBufferContent, windowStart, audioFloatBuffer, 0, keep);
+				}
+				windowStart = 0;
+				if(capture == null){
+					convertToFloat(offsetInBytes, offsetInSamples, totalSamplesRead);
 				}
-				int totalSamplesRead = totalBytesRead/format.getFrameSize();
-				audioFloatBuffer = new float[offsetInSamples + totalBytesRead/format.getFrameSize()];
-				converter.toFloatArray(audioByteBuffer, offsetInBytes, audioFloatBuffer, offsetInSamples, totalSamplesRead);
-				
-				
 			}			
 		}else if(bytesToRead == totalBytesRead) {
 			// The expected amount of bytes have been read from the stream.
 			//得到我们期望的数据，把音频的byte数据转成float数据,这会方便后面对音频数据进行分析
-			if(isFirstBuffer && !zeroPadFirstBuffer){
-				converter.toFloatArray(audioByteBuffer, 0, audioFloatBuffer, 0, audioFloatBuffer.length);
+			if(capture != null){
+				// already converted by the capture thread
+			}else if(isFirstBuffer && !zeroPadFirstBuffer){
+				convertToFloat(0, 0, audioBufferSize);
 			}else{
-				converter.toFloatArray(audioByteBuffer, offsetInBytes, audioFloatBuffer, offsetInSamples, floatStepSize);
+				convertToFloat(offsetInBytes, windowStart + offsetInSamples, floatStepSize);
 			}
 		} else if(!stopped) {
 			// If the end of the stream has not been reached and the number of bytes read is not the
@@ -470,18 +1405,162 @@ public class AudioDispatcher implements Runnable {
 		
 		// Makes sure AudioEvent contains correct info.
 		//把float数据和重叠区域大小设置到事件中
-		audioEvent.setFloatBuffer(audioFloatBuffer);
+		updateAudioEventBuffers(blockSize);
 		audioEvent.setOverlap(offsetInSamples);
-		DataForAnalysisInWaveformChart mDataForAnalysisInWaveformChart = new DataForAnalysisInWaveformChart();
-		float[] audioFloatBuffer = audioEvent.getFloatBuffer();
-		float[] copyBuffer = new float[audioFloatBuffer.length];
-		System.arraycopy(audioFloatBuffer,0, copyBuffer,0 ,audioFloatBuffer.length);
-		mDataForAnalysisInWaveformChart.setFloatBufferOriginal(copyBuffer);
-		mDataForAnalysisInWaveformChart.setDuplicateLengthInAnalysisFrame(offsetInSamples);
-		audioEvent.setDataForAnalysisInWaveformChart(mDataForAnalysisInWaveformChart);
+		blockRead = true;
+		audioEvent.setDataForAnalysisInWaveformChart(waveformChartData ? updateChartData(blockSize, offsetInSamples) : null);
 		return totalBytesRead; 
 	}
 	
+	/**
+	 * Copies the block into the chart data, the array is reused as long as
+	 * the block size stays the same.
+	 */
+	private DataForAnalysisInWaveformChart updateChartData(int blockSize, int overlap){
+		if(chartData == null){
+			chartData = new DataForAnalysisInWaveformChart();
+		}
+		float[] original = chartData.getFloatBufferOriginal();
+		if(original == null || original.length != blockSize){
+			original = new float[blockSize];
+			chartData.setFloatBufferOriginal(original);
+		}
+		System.arraycopy(audioFloatBuffer, windowStart, original, 0, blockSize);
+		chartData.setDuplicateLengthInAnalysisFrame(overlap);
+		return chartData;
+	}
+	
+	/**
+	 * Measures how much input is waiting and applies the overrun policy when
+	 * it is more than the maximum latency.
+	 * @param overlap The number of samples at the window start kept from the previous block.
+	 */
+	private void handleOverrun(int overlap){
+		// input lost by the capture source moves the stream position on, so time stamps stay on the input clock
+		long captureDrops = capture.getDroppedBeforeRead();
+		if(captureDrops != countedCaptureDrops){
+			skipPosition(captureDrops - countedCaptureDrops);
+			countedCaptureDrops = captureDrops;
+		}
+		int queued = capture.getQueuedSamples();
+		queuedSamples = queued;
+		if(queued > peakQueuedSamples){
+			peakQueuedSamples = queued;
+		}
+		if(maxLatency <= 0 || queued <= maxLatency || batchIndex > 0){
+			// in a batch the blocks read before view the overlap, drop at the start of the next batch
+			return;
+		}
+		overruns++;
+		if(overrunListener != null){
+			overrunListener.overrun(queued, maxLatency);
+		}
+		int excess = queued - maxLatency;
+		int skip = 0;
+		switch(overrunPolicy){
+		case DROP_OLDEST:
+			skip = excess;
+			break;
+		case SKIP_FRAME:
+			int frames = (excess + floatStepSize - 1) / floatStepSize;
+			frames = Math.min(frames, queued / floatStepSize);
+			skip = frames * floatStepSize;
+			skippedFrames += frames;
+			break;
+		default:
+			// the capture thread drops the newest input when its ring buffer is full
+			break;
+		}
+		if(skip <= 0){
+			return;
+		}
+		// the overlap kept from the previous block does not continue with the input after
+		// the gap: take the samples right before the new ones from the input instead
+		int refill = Math.min(overlap, skip);
+		if(refill < overlap){
+			for(float[] target : floatTargets()){
+				System.arraycopy(target, windowStart + refill, target, windowStart, overlap - refill);
+			}
+		}
+		int dropped = capture.skip(skip - refill);
+		int refilled = capture.read(floatTargets(), windowStart + overlap - refill, refill);
+		// the refilled overlap is never processed as new input either, the block starts after both
+		dropped += refilled;
+		policyDroppedSamples += dropped;
+		skipPosition(dropped);
+		if(dropped > 0){
+			LOG.fine("Dropped " + dropped + " samples to keep the latency below " + maxLatency);
+		}
+	}
+	
+	/**
+	 * Moves the stream position past input that was dropped, the block being
+	 * read starts that much later.
+	 * @param samples The number of samples (frames in planar mode) dropped.
+	 */
+	private void skipPosition(long samples){
+		bytesProcessed += samples * format.getFrameSize();
+		audioEvent.setBytesProcessed(bytesProcessed);
+	}
+	
+	/**
+	 * Moves the window to the next block in circular mode. The new samples go
+	 * right behind the current block. If they do not fit, the overlap is moved
+	 * to the start of the buffers first. When batching this is only done for
+	 * the first block of a batch, with room for the whole batch, the blocks
+	 * read before in the batch stay where they are.
+	 */
+	private void advanceWindow(){
+		int steps = batchIndex == 0 ? batchSize : 1;
+		if(windowStart + audioBufferSize + steps * floatStepSize > audioFloatBuffer.length){
+			for(float[] target : floatTargets()){
+				System.arraycopy(target, windowStart + floatStepSize, target, 0, floatOverlap);
+			}
+			windowStart = 0;
+		}else{
+			windowStart += floatStepSize;
+		}
+	}
+	
+	/**
+	 * Points the audio event to the current block.
+	 * @param blockSize The number of samples (frames in planar mode) in the block.
+	 */
+	private void updateAudioEventBuffers(int blockSize){
+		if(planar){
+			audioEvent.setChannelBufferViews(audioChannelBuffers, windowStart, blockSize);
+		}else{
+			audioEvent.setFloatBufferView(audioFloatBuffer, windowStart, blockSize);
+		}
+	}
+	
+	/**
+	 * Converts bytes from the byte buffer to the float buffer, or to the
+	 * channel buffers in planar mode.
+	 * @param offsetInBytes Where to start reading in the byte buffer.
+	 * @param offsetInSamples Where to start writing in the float buffer(s).
+	 * @param length The number of samples (frames in planar mode) to convert.
+	 */
+	private void convertToFloat(int offsetInBytes, int offsetInSamples, int length){
+		if(planar){
+			converter.toFloatArrays(audioByteBuffer, offsetInBytes, audioChannelBuffers, offsetInSamples, length);
+		}else{
+			converter.toFloatArray(audioByteBuffer, offsetInBytes, audioFloatBuffer, offsetInSamples, length);
+		}
+	}
+	
+	/**
+	 * @return The buffers the audio data is written to: the channel buffers in
+	 *         planar mode, otherwise only the float buffer.
+	 */
+	private float[][] floatTargets(){
+		if(planar){
+			return audioChannelBuffers;
+		}
+		singleFloatTarget[0] = audioFloatBuffer;
+		return singleFloatTarget;
+	}
+	
 	public TarsosDSPAudioFormat getFormat(){
 		return format;
 	}
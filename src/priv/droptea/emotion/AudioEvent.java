@@ -44,13 +44,40 @@ public class AudioEvent {
 	 */
 	private final TarsosDSPAudioFormat format;
 	
-	private final TarsosDSPAudioFloatConverter converter;
+	/**
+	 * The converter for the format, taken from the shared registry on the
+	 * first conversion and kept as long as the event is reused.
+	 */
+	private TarsosDSPAudioFloatConverter converter;
 	
 	/**
 	 * The audio data encoded in floats from -1.0 to 1.0.
 	 */
 	private float[] floatBuffer;
 	
+	/**
+	 * The audio data split per channel (planar), or null if the event only
+	 * carries the interleaved float buffer. When set, the float buffer is the
+	 * first channel.
+	 */
+	private float[][] channelBuffers;
+	
+	/**
+	 * Storage owned by this event, filled by {@link #copyFrom(AudioEvent)}.
+	 * The float buffer itself can point to arrays owned by processors.
+	 */
+	private float[] ownedFloatBuffer;
+	
+	private float[][] ownedChannelBuffers;
+	
+	/**
+	 * The audio data of this event can be a window (a view) on a larger
+	 * array: it starts at this offset in the float buffer (and in every
+	 * channel buffer) and has this length. For a plain buffer the offset is
+	 * zero and the length is the array length.
+	 */
+	private int bufferOffset, bufferLength;
+	
 	/**
 	 * The audio data encoded in bytes according to format.
 	 */
@@ -75,10 +102,279 @@ public class AudioEvent {
 	
 	
 	
+	/**
+	 * The pool this event returns to when released, null if the event is not
+	 * pooled.
+	 */
+	private final AudioEventPool pool;
+	
+	/**
+	 * The pooled storage the audio data of this event lives in, null if the
+	 * buffers belong to someone else (a processor or the dispatcher).
+	 */
+	private AudioEventPool.Block block;
+	
+	/**
+	 * True if the audio data is in the buffers of the dispatcher (see
+	 * {@link #shareFrom(AudioEvent)}), which the next block reuses: it is
+	 * copied into pooled storage before it is changed or kept.
+	 */
+	private boolean borrowed;
+	
+	/**
+	 * True between acquiring a pooled event and releasing it.
+	 */
+	private volatile boolean inUse;
+	
 	public AudioEvent(TarsosDSPAudioFormat format){
+		this(format, null);
+	}
+	
+	/**
+	 * Creates an event that belongs to a pool.
+	 */
+	AudioEvent(TarsosDSPAudioFormat format, AudioEventPool pool){
 		this.format = format;
-		this.converter = TarsosDSPAudioFloatConverter.getConverter(format);
 		this.overlap = 0;
+		this.pool = pool;
+	}
+	
+	/**
+	 * Creates a snapshot of another event: the format and the converter are
+	 * shared, the audio data is copied and the time information is taken over.
+	 * @param other The event to copy.
+	 */
+	private AudioEvent(AudioEvent other){
+		this.format = other.format;
+		this.converter = other.converter;
+		this.pool = null;
+		copyFrom(other);
+	}
+	
+	/**
+	 * Returns a detached copy of this event which can be kept after the
+	 * processing chain reuses the buffers of this event, e.g. to hand it to
+	 * another thread. The samples and the waveform chart data are copied, the
+	 * format and the converter are shared.
+	 * @return A snapshot of this event.
+	 */
+	public AudioEvent snapshot(){
+		return new AudioEvent(this);
+	}
+	
+	/**
+	 * Copies the audio data and time information of another event into this
+	 * event. The samples are copied into storage owned by this event, which
+	 * is reused as long as the buffer size stays the same, so an event kept
+	 * for recycling copies without allocating.
+	 * @param other The event to copy, with the same format.
+	 */
+	public void copyFrom(AudioEvent other){
+		int length = other.bufferLength;
+		if(pool != null && other.floatBuffer != null){
+			// pooled events copy into pooled storage
+			AudioEventPool.Block copy = pool.acquireBlock(other.getChannelCount(), length);
+			other.copyViewTo(copy);
+			setBlock(copy, other.channelBuffers != null);
+		}else if(other.channelBuffers != null){
+			int channels = other.channelBuffers.length;
+			if(ownedChannelBuffers == null || ownedChannelBuffers.length != channels || ownedChannelBuffers[0].length != length){
+				ownedChannelBuffers = new float[channels][length];
+			}
+			for(int c = 0 ; c < channels ; c++){
+				System.arraycopy(other.channelBuffers[c], other.bufferOffset, ownedChannelBuffers[c], 0, length);
+			}
+			setChannelBuffers(ownedChannelBuffers);
+		}else if(other.floatBuffer != null){
+			if(ownedFloatBuffer == null || ownedFloatBuffer.length != length){
+				ownedFloatBuffer = new float[length];
+			}
+			System.arraycopy(other.floatBuffer, other.bufferOffset, ownedFloatBuffer, 0, length);
+			setFloatBuffer(ownedFloatBuffer);
+		}
+		copyInfoFrom(other);
+	}
+	
+	/**
+	 * Copies the samples into storage owned by this event, if they are in an
+	 * array of somebody else, e.g. an output array a processor reuses for the
+	 * next block. Pooled events copy into pooled storage. Does nothing if the
+	 * event already owns its samples.
+	 */
+	public void detach(){
+		if(floatBuffer == null){
+			return;
+		}
+		boolean owned = pool != null ? block != null
+				: channelBuffers != null ? channelBuffers == ownedChannelBuffers : floatBuffer == ownedFloatBuffer;
+		if(!owned){
+			copyFrom(this);
+		}
+	}
+	
+	/**
+	 * Points this event to the audio data of another event on the same
+	 * thread, without copying, and takes over the other information. The
+	 * samples stay where they are until this event is retained or changed in
+	 * place, which copies them into pooled storage once.
+	 * @param other The event with the audio data, e.g. the event of the dispatcher.
+	 */
+	void shareFrom(AudioEvent other){
+		if(other.channelBuffers != null){
+			setChannelBufferViews(other.channelBuffers, other.bufferOffset, other.bufferLength);
+		}else{
+			setFloatBufferView(other.floatBuffer, other.bufferOffset, other.bufferLength);
+		}
+		borrowed = true;
+		overlap = other.overlap;
+		frameLength = other.frameLength;
+		bytesProcessed = other.bytesProcessed;
+		bytesProcessing = other.bytesProcessing;
+		dataForAnalysisInWaveformChart = other.dataForAnalysisInWaveformChart;
+	}
+	
+	/**
+	 * Takes over everything but the audio data.
+	 */
+	private void copyInfoFrom(AudioEvent other){
+		overlap = other.overlap;
+		frameLength = other.frameLength;
+		bytesProcessed = other.bytesProcessed;
+		bytesProcessing = other.bytesProcessing;
+		// every copy gets its own chart data, the copies live on other threads
+		dataForAnalysisInWaveformChart = other.dataForAnalysisInWaveformChart == null ? null : other.dataForAnalysisInWaveformChart.copy();
+	}
+	
+	/**
+	 * Keeps the audio data of this event for later use, e.g. on another
+	 * thread, after the processing chain moved on. Release the returned event
+	 * when done with it.
+	 * <p>
+	 * For an event from a pool the returned event is a pooled event sharing
+	 * the samples: nothing is copied if the samples are already in pooled
+	 * storage, otherwise they are copied into pooled storage once, which
+	 * later retains share. For other events the returned event is a
+	 * {@link #snapshot()}.
+	 * </p>
+	 * @return An event with the current audio data which no processor changes.
+	 */
+	public AudioEvent retain(){
+		if(pool == null || floatBuffer == null){
+			return snapshot();
+		}
+		if(block == null){
+			// the buffer belongs to a processor or the dispatcher and is reused for the next block
+			AudioEventPool.Block copy = pool.acquireBlock(getChannelCount(), bufferLength);
+			copyViewTo(copy);
+			setBlock(copy, channelBuffers != null);
+		}
+		AudioEvent shared = pool.acquire();
+		block.retain();
+		shared.setBlock(block, channelBuffers != null);
+		shared.copyInfoFrom(this);
+		return shared;
+	}
+	
+	/**
+	 * Returns a pooled event and its samples to the pool once nobody else
+	 * uses the samples. The event must not be used after releasing it. Does
+	 * nothing for events that are not pooled.
+	 */
+	public void release(){
+		if(pool == null){
+			return;
+		}
+		if(!inUse){
+			throw new IllegalStateException("Audio event released more than once");
+		}
+		inUse = false;
+		releaseBlock();
+		floatBuffer = null;
+		channelBuffers = null;
+		borrowed = false;
+		bufferOffset = 0;
+		bufferLength = 0;
+		dataForAnalysisInWaveformChart = null;
+		pool.recycle(this);
+	}
+	
+	/**
+	 * @return True if this event returns to a pool when released.
+	 */
+	public boolean isPooled(){
+		return pool != null;
+	}
+	
+	/**
+	 * Called by the pool when the event is handed out.
+	 */
+	void acquired(){
+		inUse = true;
+	}
+	
+	/**
+	 * Points the audio data to pooled storage, this event holds one
+	 * reference to it.
+	 */
+	private void setBlock(AudioEventPool.Block newBlock, boolean planar){
+		if(planar){
+			setChannelBufferViews(newBlock.channels, 0, newBlock.length());
+		}else{
+			setFloatBufferView(newBlock.channels[0], 0, newBlock.length());
+		}
+		releaseBlock();
+		block = newBlock;
+	}
+	
+	private void releaseBlock(){
+		if(block != null){
+			AudioEventPool.Block released = block;
+			block = null;
+			released.release();
+		}
+	}
+	
+	/**
+	 * Copies the current window of every channel to the start of the storage.
+	 */
+	private void copyViewTo(AudioEventPool.Block target){
+		for(int c = 0 ; c < target.channels.length ; c++){
+			float[] source = channelBuffers == null ? floatBuffer : channelBuffers[c];
+			System.arraycopy(source, bufferOffset, target.channels[c], 0, bufferLength);
+		}
+	}
+	
+	/**
+	 * Makes sure the samples can be changed in place without changing a
+	 * retained event: shared storage is copied first.
+	 */
+	private void ensureWritable(){
+		if(block != null && block.isShared() || borrowed){
+			AudioEventPool.Block copy = pool.acquireBlock(getChannelCount(), bufferLength);
+			copyViewTo(copy);
+			setBlock(copy, channelBuffers != null);
+		}
+	}
+	
+	/**
+	 * Like {@link #getFloatBufferArray()}, for processors that change the
+	 * samples in place. If the samples are shared with a retained event they
+	 * are copied first.
+	 * @return The array that holds the audio data, starting at {@link #getBufferOffset()}.
+	 */
+	public float[] getWritableFloatBufferArray(){
+		ensureWritable();
+		return floatBuffer;
+	}
+	
+	/**
+	 * Like {@link #getChannelBufferArrays()}, for processors that change the
+	 * samples in place, see {@link #getWritableFloatBufferArray()}.
+	 * @return The arrays that hold the audio data per channel, or null if this event is not planar.
+	 */
+	public float[][] getWritableChannelBufferArrays(){
+		ensureWritable();
+		return channelBuffers;
 	}
 	
 	public TarsosDSPAudioFormat getFormat() {
@@ -90,7 +386,14 @@ public class AudioEvent {
 	}
 	
 	public int getBufferSize(){
-		return getFloatBuffer().length;
+		return bufferLength;
+	}
+	
+	/**
+	 * @param frameLength The length of the stream in sample frames, negative if not known.
+	 */
+	void setFrameLength(long frameLength){
+		this.frameLength = frameLength;
 	}
 	
 	/**
@@ -145,22 +448,201 @@ public class AudioEvent {
 	 * @return a byte array with the audio data in bytes.
 	 */
 	public byte[] getByteBuffer(){
-		int length = getFloatBuffer().length * format.getFrameSize();
+		int length = bufferLength * format.getFrameSize();
 		if(byteBuffer == null || byteBuffer.length != length){
 			byteBuffer = new byte[length];
 		}
-		converter.toByteArray(getFloatBuffer(), byteBuffer);
+		if(converter == null){
+			converter = TarsosDSPAudioFloatConverter.getSharedConverter(format);
+		}
+		if(channelBuffers != null){
+			//planar data is interleaved again while converting
+			converter.toByteArray(channelBuffers, bufferOffset, bufferLength, byteBuffer, 0);
+		}else{
+			converter.toByteArray(floatBuffer, bufferOffset, bufferLength, byteBuffer, 0);
+		}
 		return byteBuffer;
 	}
 	
+	/**
+	 * Sets the (interleaved) float buffer. A processor that replaces the
+	 * buffer ends the planar layout of this event, the channel buffers are
+	 * dropped.
+	 * @param floatBuffer The new audio data.
+	 */
 	public void setFloatBuffer(float[] floatBuffer) {
+		setFloatBufferView(floatBuffer, 0, floatBuffer.length);
+	}
+	
+	/**
+	 * Sets a window on a larger array as the audio data of this event. The
+	 * samples are not copied.
+	 * @param floatBuffer The array that holds the audio data.
+	 * @param offset The index of the first sample of this event.
+	 * @param length The number of samples in this event.
+	 */
+	public void setFloatBufferView(float[] floatBuffer, int offset, int length) {
+		if(block != null && floatBuffer != block.channels[0]){
+			// the data moves out of the pooled storage
+			releaseBlock();
+		}
 		this.floatBuffer = floatBuffer;
+		this.channelBuffers = null;
+		this.borrowed = false;
+		this.bufferOffset = offset;
+		this.bufferLength = length;
 	}
 	
+	/**
+	 * Returns the audio data as an array that starts at index zero and holds
+	 * exactly the samples of this event. If the event is a view on a larger
+	 * array (see {@link #isView()}) the samples are first moved into storage
+	 * of this event, which costs a copy; changes to the returned array are
+	 * seen by the next processors. Samples shared with a retained event are
+	 * copied first too, as in {@link #getWritableFloatBufferArray()}.
+	 * Processors that know about views use
+	 * {@link #getFloatBufferArray()} with {@link #getBufferOffset()} instead,
+	 * which never copies.
+	 * @return The audio data.
+	 */
 	public float[] getFloatBuffer(){
+		compact();
+		ensureWritable();
 		return floatBuffer;
 	}
 	
+	/**
+	 * @return The array that holds the audio data, which starts at
+	 *         {@link #getBufferOffset()}. The array can be longer than the
+	 *         audio data of this event.
+	 */
+	public float[] getFloatBufferArray(){
+		return floatBuffer;
+	}
+	
+	/**
+	 * @return The index of the first sample in the float buffer array (and in
+	 *         every channel buffer array).
+	 */
+	public int getBufferOffset(){
+		return bufferOffset;
+	}
+	
+	/**
+	 * @return True if the audio data is a window on a larger array.
+	 */
+	public boolean isView(){
+		return floatBuffer != null && (bufferOffset != 0 || bufferLength != floatBuffer.length);
+	}
+	
+	/**
+	 * Moves the samples of a view into storage of this event that starts at
+	 * index zero and has the exact length, for the accessors that do not know
+	 * about views. Pooled events copy into pooled storage.
+	 */
+	private void compact(){
+		if(!isView()){
+			return;
+		}
+		int length = bufferLength;
+		if(pool != null){
+			AudioEventPool.Block copy = pool.acquireBlock(getChannelCount(), length);
+			copyViewTo(copy);
+			setBlock(copy, channelBuffers != null);
+		}else if(channelBuffers != null){
+			int channels = channelBuffers.length;
+			if(ownedChannelBuffers == null || ownedChannelBuffers.length != channels || ownedChannelBuffers[0].length != length){
+				ownedChannelBuffers = new float[channels][length];
+			}
+			for(int c = 0 ; c < channels ; c++){
+				System.arraycopy(channelBuffers[c], bufferOffset, ownedChannelBuffers[c], 0, length);
+			}
+			setChannelBuffers(ownedChannelBuffers);
+		}else{
+			if(ownedFloatBuffer == null || ownedFloatBuffer.length != length){
+				ownedFloatBuffer = new float[length];
+			}
+			System.arraycopy(floatBuffer, bufferOffset, ownedFloatBuffer, 0, length);
+			setFloatBuffer(ownedFloatBuffer);
+		}
+	}
+	
+	/**
+	 * Sets planar audio data: one float array per channel, all with the same
+	 * length. The float buffer becomes the first channel so processors that
+	 * only know about mono data keep working.
+	 * @param channelBuffers The audio data per channel.
+	 */
+	public void setChannelBuffers(float[][] channelBuffers) {
+		setChannelBufferViews(channelBuffers, 0, channelBuffers[0].length);
+	}
+	
+	/**
+	 * Sets planar audio data as a window on larger arrays, the same window
+	 * in every channel.
+	 * @param channelBuffers The arrays with the audio data per channel.
+	 * @param offset The index of the first frame of this event.
+	 * @param length The number of frames in this event.
+	 */
+	public void setChannelBufferViews(float[][] channelBuffers, int offset, int length) {
+		setFloatBufferView(channelBuffers[0], offset, length);
+		this.channelBuffers = channelBuffers;
+	}
+	
+	/**
+	 * @return The audio data per channel or null if this event is not planar.
+	 *         A view is first moved into storage of this event, as in
+	 *         {@link #getFloatBuffer()}.
+	 */
+	public float[][] getChannelBuffers(){
+		if(channelBuffers != null){
+			compact();
+			ensureWritable();
+		}
+		return channelBuffers;
+	}
+	
+	/**
+	 * @return The arrays that hold the audio data per channel, starting at
+	 *         {@link #getBufferOffset()}, or null if this event is not planar.
+	 */
+	public float[][] getChannelBufferArrays(){
+		return channelBuffers;
+	}
+	
+	/**
+	 * @param channel The channel index, starting from zero.
+	 * @return The audio data of one channel. For an event that is not planar
+	 *         only channel zero is available: the float buffer. A view is
+	 *         first moved into storage of this event, as in
+	 *         {@link #getFloatBuffer()}.
+	 */
+	public float[] getChannelBuffer(int channel){
+		if(channelBuffers == null){
+			if(channel != 0){
+				throw new IllegalArgumentException("Event is not planar, no data for channel " + channel);
+			}
+			return getFloatBuffer();
+		}
+		compact();
+		ensureWritable();
+		return channelBuffers[channel];
+	}
+	
+	/**
+	 * @return The number of channel buffers in this event, 1 if it is not planar.
+	 */
+	public int getChannelCount(){
+		return channelBuffers == null ? 1 : channelBuffers.length;
+	}
+	
+	/**
+	 * @return True if the event carries one float buffer per channel.
+	 */
+	public boolean isPlanar(){
+		return channelBuffers != null;
+	}
+	
 	/**
 	 * Calculates and returns the root mean square of the signal. Please
 	 * cache the result since it is calculated every time.
@@ -169,7 +651,7 @@ public class AudioEvent {
 	 *         the signal present in the current buffer.
 	 */
 	public double getRMS() {
-		return calculateRMS(floatBuffer);
+		return calculateRMS(floatBuffer, bufferOffset, bufferLength);
 	}
 	
 	
@@ -179,7 +661,7 @@ public class AudioEvent {
 	 * @return The dBSPL level for the buffer.
 	 */
 	public double getdBSPL() {
-		return soundPressureLevel(floatBuffer);
+		return linearToDecibel(getRMS());
 	}
 	
 	/**
@@ -191,31 +673,30 @@ public class AudioEvent {
 	 *         the signal present in the current buffer.
 	 */
 	public static double calculateRMS(float[] floatBuffer){
+		return calculateRMS(floatBuffer, 0, floatBuffer.length);
+	}
+	
+	private static double calculateRMS(float[] floatBuffer, int offset, int length){
 		double rms = 0.0;
-		for (int i = 0; i < floatBuffer.length; i++) {
+		for (int i = offset; i < offset + length; i++) {
 			rms += floatBuffer[i] * floatBuffer[i];
 		}
-		rms = rms / Double.valueOf(floatBuffer.length);
+		rms = rms / Double.valueOf(length);
 		rms = Math.sqrt(rms);
 		return rms;
 	}
 
 	public void clearFloatBuffer() {
-		Arrays.fill(floatBuffer, 0);
+		ensureWritable();
+		if(channelBuffers != null){
+			for(float[] channelBuffer : channelBuffers){
+				Arrays.fill(channelBuffer, bufferOffset, bufferOffset + bufferLength, 0);
+			}
+		}else{
+			Arrays.fill(floatBuffer, bufferOffset, bufferOffset + bufferLength, 0);
+		}
 	}
 
-		/**
-	 * Returns the dBSPL for a buffer.
-	 * 
-	 * @param buffer
-	 *            The buffer with audio information.
-	 * @return The dBSPL level for the buffer.
-	 */
-	private static double soundPressureLevel(final float[] buffer) {
-		double rms = calculateRMS(buffer);
-		return linearToDecibel(rms);
-	}
-	
 	/**
 	 * Converts a linear to a dB value.
 	 * 
@@ -228,7 +709,7 @@ public class AudioEvent {
 	}
 
 	public boolean isSilence(double silenceThreshold) {
-		return soundPressureLevel(floatBuffer) < silenceThreshold;
+		return getdBSPL() < silenceThreshold;
 	}
 
 	public void setBytesProcessing(int bytesProcessing) {
@@ -278,6 +759,23 @@ public class AudioEvent {
 		 */
 		private int dataNotOverlapWsola;
 		
+		/**
+		 * @return A copy with copies of the arrays, which can be changed
+		 *         without changing this data.
+		 */
+		public DataForAnalysisInWaveformChart copy() {
+			DataForAnalysisInWaveformChart copy = new DataForAnalysisInWaveformChart();
+			copy.floatBufferCur = floatBufferCur == null ? null : floatBufferCur.clone();
+			copy.floatBufferOriginal = floatBufferOriginal == null ? null : floatBufferOriginal.clone();
+			copy.duplicateLengthInAnalysisFrame = duplicateLengthInAnalysisFrame;
+			copy.floatBufferWsola = floatBufferWsola == null ? null : floatBufferWsola.clone();
+			copy.seekWinOffsetWsola = seekWinOffsetWsola;
+			copy.overlapWsola = overlapWsola;
+			copy.seekWindowMoveLengthWsola = seekWindowMoveLengthWsola;
+			copy.dataNotOverlapWsola = dataNotOverlapWsola;
+			return copy;
+		}
+		
 		public float[] getFloatBufferOriginal() {
 			return floatBufferOriginal;
 		}
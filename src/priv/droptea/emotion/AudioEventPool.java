@@ -0,0 +1,223 @@
+package priv.droptea.emotion;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import priv.droptea.emotion.io.TarsosDSPAudioFormat;
+
+/**
+ * Recycles audio events and their sample storage. With a pool set on the
+ * dispatcher (see {@link AudioDispatcher#setEventPool(AudioEventPool)}) every
+ * block is sent through the chain in an event from the pool. A processor that
+ * needs the samples later, e.g. on another thread, calls
+ * {@link AudioEvent#retain()} and {@link AudioEvent#release()} when done:
+ * the first retain copies the samples out of the dispatcher buffers into
+ * pooled storage, later retains share it, and both the events and the
+ * samples return to the pool once the last user released them.
+ * <p>
+ * Sample storage is reference counted. A processor that changes samples in
+ * place while they are retained gets a fresh copy first (see
+ * {@link AudioEvent#getWritableFloatBufferArray()}), so retained events never
+ * change under the feet of their user.
+ * </p>
+ * 音频事件池：事件和样本数组用引用计数回收，异步使用时不需要复制
+ */
+public class AudioEventPool {
+
+	/**
+	 * Pooled sample storage, one array per channel (one array for interleaved
+	 * data), shared by all events that view it.
+	 */
+	static final class Block {
+
+		final float[][] channels;
+
+		private final AudioEventPool pool;
+
+		private final AtomicInteger references = new AtomicInteger();
+
+		private Block(AudioEventPool pool, int channelCount, int length) {
+			this.pool = pool;
+			channels = new float[channelCount][length];
+		}
+
+		int length() {
+			return channels[0].length;
+		}
+
+		void retain() {
+			references.incrementAndGet();
+		}
+
+		/**
+		 * @return True if more than one event uses the storage.
+		 */
+		boolean isShared() {
+			return references.get() > 1;
+		}
+
+		void release() {
+			if (references.decrementAndGet() == 0) {
+				pool.recycle(this);
+			}
+		}
+	}
+
+	/**
+	 * Idle blocks of one size.
+	 */
+	private static final class Shape {
+
+		final int channelCount;
+
+		final int length;
+
+		final Queue<Block> idleBlocks = new ConcurrentLinkedQueue<Block>();
+
+		Shape(int channelCount, int length) {
+			this.channelCount = channelCount;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Block sizes kept at the same time, a tempo sweep changes the size of
+	 * the blocks all the time.
+	 */
+	private static final int MAX_SHAPES = 8;
+
+	private final TarsosDSPAudioFormat format;
+
+	private final int maxIdle;
+
+	private final Queue<AudioEvent> idleEvents = new ConcurrentLinkedQueue<AudioEvent>();
+
+	/**
+	 * Idle blocks per shape. Only a few shapes are in use at a time (e.g. the
+	 * input block and the output of a time stretcher), a linear search is
+	 * faster than a map and does not allocate.
+	 */
+	private final List<Shape> shapes = new CopyOnWriteArrayList<Shape>();
+
+	private final AtomicInteger idleEventCount = new AtomicInteger();
+
+	private final AtomicInteger idleBlockCount = new AtomicInteger();
+
+	private final AtomicLong createdEvents = new AtomicLong();
+
+	private final AtomicLong createdBlocks = new AtomicLong();
+
+	/**
+	 * @param format
+	 *            The format of the events.
+	 * @param maxIdle
+	 *            The maximum number of idle events (and of idle sample
+	 *            blocks) kept for reuse, more are left to the garbage
+	 *            collector.
+	 */
+	public AudioEventPool(TarsosDSPAudioFormat format, int maxIdle) {
+		this.format = format;
+		this.maxIdle = maxIdle;
+	}
+
+	/**
+	 * @return An event without audio data, owned by the caller until it is
+	 *         released.
+	 */
+	public AudioEvent acquire() {
+		AudioEvent audioEvent = idleEvents.poll();
+		if (audioEvent == null) {
+			createdEvents.incrementAndGet();
+			audioEvent = new AudioEvent(format, this);
+		} else {
+			idleEventCount.decrementAndGet();
+		}
+		audioEvent.acquired();
+		return audioEvent;
+	}
+
+	/**
+	 * @return Storage with exactly the requested shape and one reference.
+	 */
+	Block acquireBlock(int channelCount, int length) {
+		Block block = shape(channelCount, length).idleBlocks.poll();
+		if (block == null) {
+			createdBlocks.incrementAndGet();
+			block = new Block(this, channelCount, length);
+		} else {
+			idleBlockCount.decrementAndGet();
+		}
+		block.retain();
+		return block;
+	}
+
+	private Shape shape(int channelCount, int length) {
+		for (Shape shape : shapes) {
+			if (shape.channelCount == channelCount && shape.length == length) {
+				return shape;
+			}
+		}
+		synchronized (shapes) {
+			for (Shape shape : shapes) {
+				if (shape.channelCount == channelCount && shape.length == length) {
+					return shape;
+				}
+			}
+			if (shapes.size() >= MAX_SHAPES) {
+				// the oldest size is probably not used any more
+				Shape oldest = shapes.remove(0);
+				idleBlockCount.addAndGet(-oldest.idleBlocks.size());
+				oldest.idleBlocks.clear();
+			}
+			Shape shape = new Shape(channelCount, length);
+			shapes.add(shape);
+			return shape;
+		}
+	}
+
+	void recycle(AudioEvent audioEvent) {
+		if (idleEventCount.incrementAndGet() <= maxIdle) {
+			idleEvents.offer(audioEvent);
+		} else {
+			idleEventCount.decrementAndGet();
+		}
+	}
+
+	private void recycle(Block block) {
+		if (idleBlockCount.incrementAndGet() <= maxIdle) {
+			shape(block.channels.length, block.length()).idleBlocks.offer(block);
+		} else {
+			idleBlockCount.decrementAndGet();
+		}
+	}
+
+	public TarsosDSPAudioFormat getFormat() {
+		return format;
+	}
+
+	/**
+	 * @return The number of events allocated by the pool. It stops growing
+	 *         once the pool covers the events in flight.
+	 */
+	public long getCreatedEvents() {
+		return createdEvents.get();
+	}
+
+	/**
+	 * @return The number of sample blocks allocated by the pool.
+	 */
+	public long getCreatedBlocks() {
+		return createdBlocks.get();
+	}
+
+	/**
+	 * @return The number of events waiting for reuse.
+	 */
+	public int getIdleEvents() {
+		return idleEventCount.get();
+	}
+}
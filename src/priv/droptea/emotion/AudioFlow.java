@@ -0,0 +1,103 @@
+package priv.droptea.emotion;
+
+/**
+ * The reactive streams interfaces, with the same methods and contract as
+ * <code>java.util.concurrent.Flow</code> of Java 9, which this code can not
+ * use as it runs on Java 8. A subscriber gets items only after it requested
+ * them, so a slow subscriber slows down the publisher instead of letting
+ * queues grow.
+ * <p>
+ * Adapters: {@link DispatcherPublisher} publishes the blocks of a dispatcher,
+ * {@link ProcessorStage} runs a processor as a stage and
+ * {@link ProcessorSubscriber} feeds a processor, e.g. an
+ * {@link priv.droptea.emotion.processor.AudioPlayer}, at the end.
+ * </p>
+ * 响应式流接口（与Java 9的Flow相同），订阅方请求多少才发送多少，处理慢时会减慢读取而不是堆积队列
+ */
+public final class AudioFlow {
+
+	private AudioFlow() {
+	}
+
+	/**
+	 * Produces items for one or more subscribers, as far as they requested.
+	 *
+	 * @param <T>
+	 *            The type of the items.
+	 */
+	public interface Publisher<T> {
+		/**
+		 * Adds a subscriber, which is called back with
+		 * {@link Subscriber#onSubscribe(Subscription)}.
+		 *
+		 * @param subscriber
+		 *            The subscriber.
+		 */
+		void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	/**
+	 * Receives items, calls are made one at a time.
+	 *
+	 * @param <T>
+	 *            The type of the items.
+	 */
+	public interface Subscriber<T> {
+		/**
+		 * Called before any other method, no items arrive before a request
+		 * on the subscription.
+		 *
+		 * @param subscription
+		 *            The link to the publisher.
+		 */
+		void onSubscribe(Subscription subscription);
+
+		/**
+		 * @param item
+		 *            The next item, one of those requested.
+		 */
+		void onNext(T item);
+
+		/**
+		 * Called once when the publisher failed, no calls follow.
+		 *
+		 * @param throwable
+		 *            The failure.
+		 */
+		void onError(Throwable throwable);
+
+		/**
+		 * Called once when there are no more items, no calls follow.
+		 */
+		void onComplete();
+	}
+
+	/**
+	 * Links a subscriber to a publisher.
+	 */
+	public interface Subscription {
+		/**
+		 * Asks for more items. Demand adds up.
+		 *
+		 * @param n
+		 *            The number of additional items, more than zero.
+		 */
+		void request(long n);
+
+		/**
+		 * Stops sending items, possibly after some already on the way.
+		 */
+		void cancel();
+	}
+
+	/**
+	 * A stage which is both subscriber and publisher.
+	 *
+	 * @param <T>
+	 *            The type of the items it subscribes to.
+	 * @param <R>
+	 *            The type of the items it publishes.
+	 */
+	public interface Processor<T, R> extends Subscriber<T>, Publisher<R> {
+	}
+}
@@ -0,0 +1,283 @@
+package priv.droptea.emotion;
+
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import priv.droptea.emotion.io.TarsosDSPAudioFloatConverter;
+import priv.droptea.emotion.io.TarsosDSPAudioFormat;
+import priv.droptea.emotion.io.TarsosDSPAudioInputStream;
+import priv.droptea.emotion.util.BroadcastRingBuffer;
+
+/**
+ * Captures one audio stream, e.g. a microphone, for any number of
+ * dispatchers. A single capture thread reads the device and converts the
+ * samples once, into a ring buffer all dispatchers read from, each at its own
+ * position and with its own buffer size, overlap and processing chain.
+ * <p>
+ * The capture thread never waits for a dispatcher. A dispatcher that falls
+ * behind more than the latency budget loses its oldest input, counted in
+ * {@link AudioDispatcher#getDroppedSamples()}, the other dispatchers are not
+ * affected. A dispatcher gets the input from the moment it starts; skipping
+ * to a start position is not supported.
+ * </p>
+ * 共享采集：一个采集线程读取并转换音频，多个分发器各自从共享的环形缓冲区读取
+ */
+public class BroadcastCapture implements Runnable {
+
+	private static final Logger LOG = Logger.getLogger(BroadcastCapture.class.getName());
+
+	/**
+	 * How long a dispatcher sleeps when waiting for data.
+	 */
+	private static final long PARK_NANOS = 500000;
+
+	private final TarsosDSPAudioInputStream audioInputStream;
+
+	private final TarsosDSPAudioFormat format;
+
+	private final TarsosDSPAudioFloatConverter converter;
+
+	private final boolean planar;
+
+	private final BroadcastRingBuffer ring;
+
+	private final byte[] byteBlock;
+
+	private final float[][] floatBlock;
+
+	private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+	private volatile boolean stopped;
+
+	private Thread thread;
+
+	/**
+	 * The input of one dispatcher: a cursor on the shared ring buffer.
+	 */
+	private final class Subscription implements CaptureSource {
+
+		private volatile BroadcastRingBuffer.Cursor cursor;
+
+		private volatile boolean stopped;
+
+		/**
+		 * The dispatcher thread, woken up when new data arrives.
+		 */
+		private volatile Thread consumer;
+
+		@Override
+		public void start() {
+			cursor = ring.newCursor();
+			subscriptions.add(this);
+			startCapture();
+		}
+
+		@Override
+		public void stop() {
+			stopped = true;
+			subscriptions.remove(this);
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+
+		@Override
+		public int read(float[][] targets, int offset, int length) {
+			consumer = Thread.currentThread();
+			int total = 0;
+			while (total < length && !stopped) {
+				int read = cursor.read(targets, offset + total, length - total);
+				total += read;
+				if (total < length) {
+					if (ring.isClosed() && cursor.available() == 0) {
+						break;
+					}
+					if (read == 0) {
+						LockSupport.parkNanos(this, PARK_NANOS);
+					}
+				}
+			}
+			return total;
+		}
+
+		@Override
+		public int skip(int length) {
+			return cursor == null ? 0 : cursor.skip(length);
+		}
+
+		@Override
+		public int getQueuedSamples() {
+			return cursor == null ? 0 : cursor.available();
+		}
+
+		@Override
+		public long getDroppedSamples() {
+			return cursor == null ? 0 : cursor.getDroppedSamples();
+		}
+
+		@Override
+		public long getDroppedBeforeRead() {
+			// the oldest input is dropped, right at the read position
+			return getDroppedSamples();
+		}
+
+		@Override
+		public boolean isFinished() {
+			return ring.isClosed();
+		}
+	}
+
+	/**
+	 * Stands in for the stream in a dispatcher: it only provides the format,
+	 * the samples come from the subscription.
+	 */
+	private final class SharedStream implements TarsosDSPAudioInputStream {
+
+		@Override
+		public long skip(long bytesToSkip) throws IOException {
+			return 0;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return -1;
+		}
+
+		@Override
+		public void close() throws IOException {
+			// the stream is shared, see BroadcastCapture#close()
+		}
+
+		@Override
+		public TarsosDSPAudioFormat getFormat() {
+			return format;
+		}
+
+		@Override
+		public long getFrameLength() {
+			return audioInputStream.getFrameLength();
+		}
+	}
+
+	/**
+	 * @param stream
+	 *            The stream to capture.
+	 * @param planar
+	 *            True to capture for planar dispatchers, one ring buffer per
+	 *            channel, see {@link AudioDispatcher#setPlanar(boolean)}.
+	 * @param blockSize
+	 *            The number of frames read from the stream at once.
+	 * @param latencyBudget
+	 *            The number of samples (frames in planar mode) a dispatcher
+	 *            can fall behind before it loses input.
+	 */
+	public BroadcastCapture(TarsosDSPAudioInputStream stream, boolean planar, int blockSize, int latencyBudget) {
+		this.audioInputStream = stream;
+		this.format = stream.getFormat();
+		this.converter = TarsosDSPAudioFloatConverter.getSharedConverter(format);
+		this.planar = planar;
+		int channels = planar ? format.getChannels() : 1;
+		int blockSamples = planar ? blockSize : blockSize * format.getChannels();
+		ring = new BroadcastRingBuffer(channels, Math.max(latencyBudget, blockSamples));
+		byteBlock = new byte[blockSize * format.getFrameSize()];
+		floatBlock = new float[channels][blockSamples];
+	}
+
+	/**
+	 * Creates a dispatcher that takes its input from this capture. Capturing
+	 * starts when the first dispatcher runs, the dispatcher gets the input
+	 * from the moment it runs on.
+	 *
+	 * @param audioBufferSize
+	 *            The number of samples (frames in planar mode) processed in
+	 *            one step.
+	 * @param bufferOverlap
+	 *            How much consecutive buffers overlap.
+	 * @return A new dispatcher, not yet running.
+	 */
+	public AudioDispatcher newDispatcher(int audioBufferSize, int bufferOverlap) {
+		AudioDispatcher dispatcher = new AudioDispatcher(new SharedStream(), audioBufferSize, bufferOverlap);
+		if (planar) {
+			dispatcher.setPlanar(true);
+		}
+		dispatcher.setCaptureSource(new Subscription());
+		return dispatcher;
+	}
+
+	/**
+	 * Starts the capture thread unless it runs already. Dispatchers start it
+	 * when they run, call this to capture before.
+	 */
+	public synchronized void startCapture() {
+		if (thread == null && !stopped) {
+			thread = new Thread(this, "Broadcast audio capture");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MAX_PRIORITY);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stops capturing and closes the stream. Dispatchers process what they
+	 * have, then finish.
+	 */
+	public void close() {
+		stopped = true;
+		try {
+			audioInputStream.close();
+		} catch (IOException e) {
+			LOG.log(Level.SEVERE, "Closing audio stream error.", e);
+		}
+	}
+
+	/**
+	 * @return The number of dispatchers reading from this capture.
+	 */
+	public int getSubscriberCount() {
+		return subscriptions.size();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!stopped) {
+				int bytesRead;
+				try {
+					bytesRead = audioInputStream.read(byteBlock, 0, byteBlock.length);
+				} catch (IndexOutOfBoundsException e) {
+					bytesRead = -1;
+				}
+				if (bytesRead == -1) {
+					break;
+				}
+				int frames = bytesRead / format.getFrameSize();
+				int samples;
+				if (planar) {
+					samples = frames;
+					converter.toFloatArrays(byteBlock, 0, floatBlock, 0, frames);
+				} else {
+					samples = frames * format.getChannels();
+					converter.toFloatArray(byteBlock, 0, floatBlock[0], 0, samples);
+				}
+				ring.write(floatBlock, 0, samples);
+				wakeUpSubscribers();
+			}
+		} catch (IOException e) {
+			if (!stopped) {
+				LOG.log(Level.WARNING, "Error while capturing audio: " + e.getMessage(), e);
+			}
+		} finally {
+			ring.close();
+			wakeUpSubscribers();
+		}
+	}
+
+	private void wakeUpSubscribers() {
+		for (Subscription subscription : subscriptions) {
+			LockSupport.unpark(subscription.consumer);
+		}
+	}
+}
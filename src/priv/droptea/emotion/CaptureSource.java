@@ -0,0 +1,73 @@
+package priv.droptea.emotion;
+
+/**
+ * Converted input that a dispatcher takes from another thread instead of
+ * reading the stream itself, see
+ * {@link AudioDispatcher#setCaptureThread(int, int)} and
+ * {@link BroadcastCapture}. Apart from {@link #start()} and {@link #stop()},
+ * only the dispatcher thread calls these methods.
+ * 分发器从其他线程获取已转换音频数据的来源
+ */
+interface CaptureSource {
+
+	/**
+	 * Called when the dispatcher starts, before the first read.
+	 */
+	void start();
+
+	/**
+	 * Called when the dispatcher stops, a waiting read returns.
+	 */
+	void stop();
+
+	/**
+	 * Reads samples, waiting until the requested amount is available, the
+	 * input ended or the dispatcher stops.
+	 *
+	 * @param targets
+	 *            The target buffers, one per channel in planar mode, else one.
+	 * @param offset
+	 *            Where to start writing in each target buffer.
+	 * @param length
+	 *            The number of samples (frames in planar mode) to read.
+	 * @return The number of samples read, less than length at the end of the
+	 *         input.
+	 */
+	int read(float[][] targets, int offset, int length);
+
+	/**
+	 * Discards the oldest waiting samples.
+	 *
+	 * @param length
+	 *            The number of samples (frames in planar mode) to discard.
+	 * @return The number of samples actually discarded.
+	 */
+	int skip(int length);
+
+	/**
+	 * @return The number of samples (frames in planar mode) waiting to be
+	 *         processed.
+	 */
+	int getQueuedSamples();
+
+	/**
+	 * @return The number of samples lost because the dispatcher fell behind
+	 *         more than the latency budget.
+	 */
+	long getDroppedSamples();
+
+	/**
+	 * Only called by the dispatcher thread, the stream position of the next
+	 * sample read is the number of samples read and skipped plus this.
+	 *
+	 * @return The number of samples lost before the next sample that is read,
+	 *         at most {@link #getDroppedSamples()}.
+	 */
+	long getDroppedBeforeRead();
+
+	/**
+	 * @return True if no more input arrives, what is waiting can still be
+	 *         read without blocking.
+	 */
+	boolean isFinished();
+}
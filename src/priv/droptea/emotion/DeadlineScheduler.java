@@ -0,0 +1,190 @@
+package priv.droptea.emotion;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import priv.droptea.emotion.processor.QualityScalable;
+
+/**
+ * Lowers the quality of the processing chain when blocks come close to their
+ * real-time deadline, and restores it when there is headroom again. The
+ * dispatcher reports the processing time of every block together with the
+ * duration of the audio it advanced, their ratio is the load. The load is
+ * smoothed, above the degrade threshold (or when the dispatcher reports an
+ * overrun) one processor steps down a level, after a number of blocks below
+ * the restore threshold one processor steps back up. The gap between the
+ * thresholds keeps the quality from flapping.
+ * <p>
+ * Processors are degraded in the order they were added and restored in the
+ * reverse order. Install with
+ * {@link AudioDispatcher#setDeadlineScheduler(DeadlineScheduler)}, and as
+ * overrun listener to react to input piling up as well.
+ * </p>
+ * 根据处理耗时与实时期限的比例，过载时降低处理质量，空闲时恢复质量
+ */
+public class DeadlineScheduler implements AudioDispatcher.OverrunListener {
+
+	private static final Logger LOG = Logger.getLogger(DeadlineScheduler.class.getName());
+
+	/**
+	 * Weight of the newest block in the smoothed load.
+	 */
+	private static final double SMOOTHING = 0.2;
+
+	/**
+	 * Blocks to wait after a change before degrading again, so the load can
+	 * show the effect of the change.
+	 */
+	private static final int COOLDOWN_BLOCKS = 8;
+
+	private final List<QualityScalable> processors;
+
+	private final double degradeLoad;
+
+	private final double restoreLoad;
+
+	private final int restoreBlocks;
+
+	private volatile double load;
+
+	private int blocksBelowRestore;
+
+	private int cooldown;
+
+	private volatile long degradations, restorations;
+
+	/**
+	 * A scheduler that degrades above 80% load and restores after 50 blocks
+	 * below 50% load.
+	 */
+	public DeadlineScheduler() {
+		this(0.8, 0.5, 50);
+	}
+
+	/**
+	 * @param degradeLoad
+	 *            The smoothed load (processing time divided by audio time)
+	 *            above which the quality is lowered, e.g. 0.8.
+	 * @param restoreLoad
+	 *            The smoothed load below which the quality is restored, lower
+	 *            than degradeLoad.
+	 * @param restoreBlocks
+	 *            The number of consecutive blocks below restoreLoad before
+	 *            the quality goes up a step.
+	 */
+	public DeadlineScheduler(double degradeLoad, double restoreLoad, int restoreBlocks) {
+		if (restoreLoad >= degradeLoad) {
+			throw new IllegalArgumentException("The restore load must be lower than the degrade load");
+		}
+		this.degradeLoad = degradeLoad;
+		this.restoreLoad = restoreLoad;
+		this.restoreBlocks = restoreBlocks;
+		processors = new ArrayList<QualityScalable>();
+	}
+
+	/**
+	 * Adds a processor whose quality may be lowered. Add the processor that
+	 * should be degraded first first.
+	 *
+	 * @param processor
+	 *            The processor.
+	 * @return This scheduler.
+	 */
+	public DeadlineScheduler add(QualityScalable processor) {
+		processors.add(processor);
+		return this;
+	}
+
+	/**
+	 * Called by the dispatcher after every block.
+	 *
+	 * @param processingNanos
+	 *            The time the chain needed for the block.
+	 * @param deadlineNanos
+	 *            The duration of the audio the block advanced.
+	 */
+	void blockProcessed(long processingNanos, long deadlineNanos) {
+		if (deadlineNanos <= 0) {
+			return;
+		}
+		double blockLoad = (double) processingNanos / deadlineNanos;
+		load = SMOOTHING * blockLoad + (1 - SMOOTHING) * load;
+		if (cooldown > 0) {
+			cooldown--;
+		}
+		if (load > degradeLoad || blockLoad > 1.0) {
+			blocksBelowRestore = 0;
+			if (cooldown == 0) {
+				degrade();
+			}
+		} else if (load < restoreLoad) {
+			if (++blocksBelowRestore >= restoreBlocks) {
+				blocksBelowRestore = 0;
+				restore();
+			}
+		} else {
+			blocksBelowRestore = 0;
+		}
+	}
+
+	/**
+	 * Input is piling up: lower the quality right away.
+	 */
+	@Override
+	public void overrun(int queuedSamples, int maxLatency) {
+		blocksBelowRestore = 0;
+		if (cooldown == 0) {
+			degrade();
+		}
+	}
+
+	private void degrade() {
+		for (QualityScalable processor : processors) {
+			int level = processor.getQualityLevel();
+			if (level < processor.getMaxQualityLevel()) {
+				processor.setQualityLevel(level + 1);
+				degradations++;
+				cooldown = COOLDOWN_BLOCKS;
+				LOG.fine("Lowered the quality of " + processor.getClass().getSimpleName() + " to level " + (level + 1) + ", load " + load);
+				return;
+			}
+		}
+	}
+
+	private void restore() {
+		for (int i = processors.size() - 1; i >= 0; i--) {
+			QualityScalable processor = processors.get(i);
+			int level = processor.getQualityLevel();
+			if (level > 0) {
+				processor.setQualityLevel(level - 1);
+				restorations++;
+				cooldown = COOLDOWN_BLOCKS;
+				LOG.fine("Raised the quality of " + processor.getClass().getSimpleName() + " to level " + (level - 1) + ", load " + load);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return The smoothed load, the fraction of the real-time budget the
+	 *         chain uses.
+	 */
+	public double getLoad() {
+		return load;
+	}
+
+	/**
+	 * @return The number of times a processor was stepped down.
+	 */
+	public long getDegradations() {
+		return degradations;
+	}
+
+	/**
+	 * @return The number of times a processor was stepped back up.
+	 */
+	public long getRestorations() {
+		return restorations;
+	}
+}
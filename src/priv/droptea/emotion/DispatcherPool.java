@@ -0,0 +1,329 @@
+package priv.droptea.emotion;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs many dispatchers on a few worker threads instead of one thread per
+ * dispatcher. The workers go round the sessions and dispatch a block whenever
+ * a session has one ready, a session waiting for input does not occupy a
+ * thread. This way one JVM hosts thousands of mostly idle sessions.
+ * <p>
+ * Sessions should capture on their own thread (see
+ * {@link AudioDispatcher#setCaptureThread(int, int)}), only then the pool can
+ * see without blocking whether input is waiting. A dispatcher reading its
+ * stream directly holds a worker while the read blocks, which is fine for
+ * files but not for live input.
+ * </p>
+ * <p>
+ * The number of sessions is limited, {@link #submit(AudioDispatcher)} rejects
+ * sessions beyond the limit. The counters of the pool are shared by all
+ * sessions and can be read from any thread.
+ * </p>
+ * 分发器池：少量工作线程轮流处理大量会话，只有在会话有数据时才占用线程
+ */
+public class DispatcherPool {
+
+	private static final Logger LOG = Logger.getLogger(DispatcherPool.class.getName());
+
+	/**
+	 * How long a worker sleeps when no session had a block ready.
+	 */
+	private static final long IDLE_PARK_NANOS = 1000000;
+
+	/**
+	 * Blocks a session may dispatch in one turn before the next session gets
+	 * its turn.
+	 */
+	private static final int BLOCKS_PER_TURN = 4;
+
+	/**
+	 * A dispatcher running in the pool.
+	 */
+	public static class Session {
+
+		private final AudioDispatcher dispatcher;
+
+		private boolean prepared;
+
+		private volatile boolean finished;
+
+		private volatile long blocksDispatched;
+
+		private Session(AudioDispatcher dispatcher) {
+			this.dispatcher = dispatcher;
+		}
+
+		public AudioDispatcher getDispatcher() {
+			return dispatcher;
+		}
+
+		/**
+		 * @return The number of blocks sent through the processing chain.
+		 */
+		public long getBlocksDispatched() {
+			return blocksDispatched;
+		}
+
+		/**
+		 * @return True if the stream ended or the session was stopped.
+		 */
+		public boolean isFinished() {
+			return finished;
+		}
+
+		/**
+		 * Stops the dispatcher, the session leaves the pool at its next turn.
+		 */
+		public void stop() {
+			dispatcher.stop();
+		}
+	}
+
+	private final Queue<Session> runQueue;
+
+	private final Set<Session> sessions;
+
+	private final List<Thread> workers;
+
+	private final int maxSessions;
+
+	private final AtomicInteger activeSessions = new AtomicInteger();
+
+	private final AtomicLong admittedSessions = new AtomicLong();
+
+	private final AtomicLong rejectedSessions = new AtomicLong();
+
+	private final AtomicLong failedSessions = new AtomicLong();
+
+	private final AtomicLong blocksDispatched = new AtomicLong();
+
+	private volatile boolean shutdown;
+
+	/**
+	 * Creates the pool and starts the workers.
+	 *
+	 * @param workerCount
+	 *            The number of worker threads, e.g. the number of cores.
+	 * @param maxSessions
+	 *            The maximum number of sessions running at the same time.
+	 */
+	public DispatcherPool(int workerCount, int maxSessions) {
+		this.maxSessions = maxSessions;
+		runQueue = new ConcurrentLinkedQueue<Session>();
+		sessions = ConcurrentHashMap.newKeySet();
+		workers = new ArrayList<Thread>();
+		for (int i = 0; i < workerCount; i++) {
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			}, "Dispatcher pool worker " + i);
+			worker.setDaemon(true);
+			workers.add(worker);
+			worker.start();
+		}
+	}
+
+	/**
+	 * Adds a dispatcher to the pool, it starts at the next turn of a worker.
+	 * Do not call {@link AudioDispatcher#run()} yourself.
+	 *
+	 * @param dispatcher
+	 *            The dispatcher to run.
+	 * @return The session, to follow or stop it.
+	 * @throws RejectedExecutionException
+	 *             If the pool is shut down or already runs the maximum number
+	 *             of sessions.
+	 */
+	public Session submit(AudioDispatcher dispatcher) {
+		if (shutdown) {
+			rejectedSessions.incrementAndGet();
+			throw new RejectedExecutionException("The dispatcher pool is shut down");
+		}
+		int active;
+		do {
+			active = activeSessions.get();
+			if (active >= maxSessions) {
+				rejectedSessions.incrementAndGet();
+				throw new RejectedExecutionException("The dispatcher pool already runs " + maxSessions + " sessions");
+			}
+		} while (!activeSessions.compareAndSet(active, active + 1));
+		admittedSessions.incrementAndGet();
+		Session session = new Session(dispatcher);
+		sessions.add(session);
+		runQueue.offer(session);
+		return session;
+	}
+
+	/**
+	 * Body of a worker: take the next session, dispatch what it has ready and
+	 * put it back. Sleeps a moment after a round without work.
+	 */
+	private void work() {
+		int misses = 0;
+		while (!shutdown) {
+			Session session = runQueue.poll();
+			if (session == null) {
+				LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+				continue;
+			}
+			if (turn(session)) {
+				misses = 0;
+			} else if (++misses >= activeSessions.get()) {
+				// nobody had input, wait for the devices
+				misses = 0;
+				LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+			}
+			if (session.finished) {
+				sessions.remove(session);
+				activeSessions.decrementAndGet();
+			} else {
+				runQueue.offer(session);
+			}
+		}
+	}
+
+	/**
+	 * Dispatches the blocks a session has ready, at most
+	 * {@link #BLOCKS_PER_TURN}.
+	 *
+	 * @return True if at least one block was dispatched or the session ended.
+	 */
+	private boolean turn(Session session) {
+		AudioDispatcher dispatcher = session.dispatcher;
+		try {
+			if (!session.prepared) {
+				session.prepared = true;
+				dispatcher.prepareDispatching();
+			}
+			int turns = 0;
+			long before = dispatcher.getBlocksDispatched();
+			try {
+				while (turns < BLOCKS_PER_TURN && dispatcher.isBlockReady()) {
+					boolean more = dispatcher.dispatchNextBlock();
+					if (!more) {
+						session.finished = true;
+						return true;
+					}
+					turns++;
+				}
+			} finally {
+				// a batch dispatches several blocks in one step
+				long blocks = dispatcher.getBlocksDispatched() - before;
+				session.blocksDispatched += blocks;
+				blocksDispatched.addAndGet(blocks);
+			}
+			return turns > 0;
+		} catch (RuntimeException e) {
+			fail(session, e);
+		} catch (Error e) {
+			fail(session, e);
+		}
+		return true;
+	}
+
+	private void fail(Session session, Throwable e) {
+		LOG.log(Level.SEVERE, "Dispatcher session failed: " + e.getMessage(), e);
+		failedSessions.incrementAndGet();
+		session.finished = true;
+		if (!session.dispatcher.isStopped()) {
+			session.dispatcher.stop();
+		}
+	}
+
+	/**
+	 * Stops the workers, then stops every session still running.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		Session session;
+		while ((session = runQueue.poll()) != null) {
+			if (!session.dispatcher.isStopped()) {
+				session.dispatcher.stop();
+			}
+			session.finished = true;
+			sessions.remove(session);
+			activeSessions.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return The number of sessions running now.
+	 */
+	public int getActiveSessions() {
+		return activeSessions.get();
+	}
+
+	/**
+	 * @return The number of sessions accepted since the pool was created.
+	 */
+	public long getAdmittedSessions() {
+		return admittedSessions.get();
+	}
+
+	/**
+	 * @return The number of sessions rejected because the pool was full or
+	 *         shut down.
+	 */
+	public long getRejectedSessions() {
+		return rejectedSessions.get();
+	}
+
+	/**
+	 * @return The number of sessions ended by an error in the chain.
+	 */
+	public long getFailedSessions() {
+		return failedSessions.get();
+	}
+
+	/**
+	 * @return The number of blocks dispatched by all sessions together.
+	 */
+	public long getBlocksDispatched() {
+		return blocksDispatched.get();
+	}
+
+	/**
+	 * @return The input samples dropped by the running sessions, see
+	 *         {@link AudioDispatcher#getDroppedSamples()}.
+	 */
+	public long getDroppedSamples() {
+		long dropped = 0;
+		for (Session session : sessions) {
+			dropped += session.dispatcher.getDroppedSamples();
+		}
+		return dropped;
+	}
+
+	/**
+	 * @return The number of overruns of the running sessions, see
+	 *         {@link AudioDispatcher#getOverruns()}.
+	 */
+	public long getOverruns() {
+		long overruns = 0;
+		for (Session session : sessions) {
+			overruns += session.dispatcher.getOverruns();
+		}
+		return overruns;
+	}
+}
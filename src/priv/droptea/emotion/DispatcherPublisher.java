@@ -0,0 +1,194 @@
+package priv.droptea.emotion;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import priv.droptea.emotion.processor.AudioProcessor;
+
+/**
+ * Publishes the blocks of a dispatcher, after its processing chain, to one
+ * subscriber. A block is only read from the input stream when the subscriber
+ * has demand, so a slow subscriber throttles reading instead of letting blocks
+ * pile up. Reading and processing run on the given executor, never on more
+ * than one thread at a time.
+ * <p>
+ * Every published event is retained (see {@link AudioEvent#retain()}): the
+ * subscriber may keep it after <code>onNext</code> returns and must
+ * {@link AudioEvent#release()} it when done. A batch of the dispatcher takes
+ * no more blocks than requested. Do not run the dispatcher
+ * itself.
+ * </p>
+ * 把分发器的音频块发布给订阅方，订阅方请求时才读取下一块
+ */
+public class DispatcherPublisher implements AudioFlow.Publisher<AudioEvent> {
+
+	private final AudioDispatcher dispatcher;
+
+	private final Executor executor;
+
+	private final AtomicBoolean subscribed = new AtomicBoolean();
+
+	private volatile AudioFlow.Subscriber<? super AudioEvent> subscriber;
+
+	private final AtomicLong demand = new AtomicLong();
+
+	/**
+	 * Requests and cancellations not yet seen by the drain loop, the loop
+	 * runs while this is not zero.
+	 */
+	private final AtomicInteger pendingSignals = new AtomicInteger();
+
+	private volatile boolean cancelled;
+
+	private volatile IllegalArgumentException invalidRequest;
+
+	private boolean started, done;
+
+	/**
+	 * @param dispatcher
+	 *            The dispatcher with the processing chain.
+	 * @param executor
+	 *            Runs the reading and processing, e.g. a thread pool shared
+	 *            by many publishers.
+	 */
+	public DispatcherPublisher(AudioDispatcher dispatcher, Executor executor) {
+		this.dispatcher = dispatcher;
+		this.executor = executor;
+	}
+
+	@Override
+	public void subscribe(AudioFlow.Subscriber<? super AudioEvent> newSubscriber) {
+		if (!subscribed.compareAndSet(false, true)) {
+			newSubscriber.onSubscribe(new AudioFlow.Subscription() {
+				@Override
+				public void request(long n) {
+				}
+
+				@Override
+				public void cancel() {
+				}
+			});
+			newSubscriber.onError(new IllegalStateException("A dispatcher publishes to one subscriber only"));
+			return;
+		}
+		subscriber = newSubscriber;
+		// a batch (see AudioDispatcher#setBatchSize(int)) takes no more blocks than requested
+		dispatcher.setBatchLimit(new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return demand.get();
+			}
+		});
+		dispatcher.addAudioProcessor(new AudioProcessor() {
+			@Override
+			public boolean process(AudioEvent audioEvent) {
+				if (demand.get() <= 0) {
+					// never more than requested, the batch limit keeps batches within the demand
+					return false;
+				}
+				demand.decrementAndGet();
+				subscriber.onNext(audioEvent.retain());
+				return true;
+			}
+
+			@Override
+			public void processingFinished() {
+				// the drain loop completes the subscriber
+			}
+		});
+		newSubscriber.onSubscribe(new AudioFlow.Subscription() {
+			@Override
+			public void request(long n) {
+				if (n <= 0) {
+					// reported by the drain loop, calls to the subscriber are never concurrent
+					invalidRequest = new IllegalArgumentException("Requested " + n + " items, must be more than zero");
+					signal();
+					return;
+				}
+				long current;
+				do {
+					current = demand.get();
+				} while (!demand.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+				signal();
+			}
+
+			@Override
+			public void cancel() {
+				cancelled = true;
+				signal();
+			}
+		});
+	}
+
+	/**
+	 * Starts the drain loop on the executor unless it runs already.
+	 */
+	private void signal() {
+		if (pendingSignals.getAndIncrement() == 0) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					drain();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Processes blocks while there is demand. A request made during
+	 * <code>onNext</code> is handled by the running loop.
+	 */
+	private void drain() {
+		int signals = pendingSignals.get();
+		while (true) {
+			if (!done) {
+				try {
+					drainBlocks();
+				} catch (RuntimeException e) {
+					fail(e);
+				} catch (Error e) {
+					fail(e);
+				}
+			}
+			signals = pendingSignals.addAndGet(-signals);
+			if (signals == 0) {
+				return;
+			}
+		}
+	}
+
+	private void drainBlocks() {
+		if (invalidRequest != null) {
+			fail(invalidRequest);
+			return;
+		}
+		if (!started) {
+			started = true;
+			dispatcher.prepareDispatching();
+		}
+		while (!cancelled && invalidRequest == null && demand.get() > 0) {
+			if (!dispatcher.dispatchNextBlock()) {
+				done = true;
+				subscriber.onComplete();
+				return;
+			}
+		}
+		if (cancelled) {
+			done = true;
+			if (!dispatcher.isStopped()) {
+				dispatcher.stop();
+			}
+		}
+	}
+
+	private void fail(Throwable throwable) {
+		done = true;
+		if (!dispatcher.isStopped()) {
+			dispatcher.stop();
+		}
+		subscriber.onError(throwable);
+	}
+}
@@ -27,6 +27,7 @@ import priv.droptea.emotion.panel.MicChoosePanel;
 import priv.droptea.emotion.panel.WaveformChartPanel;
 import priv.droptea.emotion.processor.AudioPlayer;
 import priv.droptea.emotion.processor.GainProcessor;
+import priv.droptea.emotion.processor.ProcessorGraph;
 import priv.droptea.emotion.processor.WaveformChartProcessor;
 import priv.droptea.emotion.processor.WsolaProcessor;
 import priv.droptea.emotion.processor.WsolaProcessor.Parameters;
@@ -89,6 +90,10 @@ public class Emotion extends JFrame{
 	private double currentFactor = 1.5;// pitch shift factor
 	private double sampleRate;
 	private AudioDispatcher dispatcher;
+	//分发器在池中运行，切换麦克风时不再为每个分发器新建处理线程；采集仍然是每个会话一个线程，麦克风线路只属于一个会话
+	//同时只运行一个会话，切换时旧会话在工作线程的下一轮才离开池，所以允许两个
+	private final DispatcherPool dispatcherPool = new DispatcherPool(1, 2);
+	private DispatcherPool.Session session;
 	private AudioPlayer audioPlayer;
 	private Mixer curMixer;
 	private WaveformChartPanel analysisFrameWaveformChart;
@@ -145,15 +150,22 @@ public class Emotion extends JFrame{
 	
 	public  void changeMic(Mixer mixer) {
 		try {
+			//停止旧的分发器，它的采集线程和播放器随之结束
+			if(session!=null) {
+				session.stop();
+				session = null;
+			}
 			if(curMixer!=null&&curMixer.isOpen()) {
 				curMixer.close();
 			}
 			curMixer = mixer;
 			AudioFormat mFormat = new AudioFormat(44100, 16, 1, true,false);
 			DataLine.Info dataLineInfo = new DataLine.Info(TargetDataLine.class, mFormat);
-			if(audioPlayer==null) {
-				audioPlayer = new AudioPlayer(mFormat);
-			}
+			audioPlayer = new AudioPlayer(mFormat);
+			//写声卡放到单独的线程，输出设备卡顿时不会阻塞处理线程
+			audioPlayer.startWriterThread((int) (mFormat.getSampleRate() / 2));
+			//根据欠载次数自动调整输出缓冲，每分钟最多一次欠载，欠载时补静音
+			audioPlayer.setAdaptiveJitterBuffer(1, 0, (int) (mFormat.getSampleRate() / 4), AudioPlayer.UnderrunPolicy.SILENCE);
 			gain = new GainProcessor(1.0);
 			rateTransposer = new RateTransposer(currentFactor);
 			sampleRate =  mFormat.getSampleRate();
@@ -168,18 +180,35 @@ public class Emotion extends JFrame{
 			System.out.println("AudioDispatcher_getAnalysisFrameLength:"+wsola.getAnalysisFrameLength()
 			+"_getDuplicateLengthInAnalysisFrame:"+wsola.getDuplicateLengthInAnalysisFrame());
 			dispatcher = new AudioDispatcher(audioStream, wsola.getAnalysisFrameLength(),wsola.getDuplicateLengthInAnalysisFrame()); 
+			//分析帧在缓冲区中向后滑动，重叠区域不需要每块都复制
+			dispatcher.setCircularBuffer(true);
+			//采集放到单独的线程，处理慢的时候不会丢失麦克风数据
+			dispatcher.setCaptureThread(512, (int) (mFormat.getSampleRate() / 2));
+			//处理跟不上时按整步丢弃最旧的输入，延迟保持在200毫秒以内
+			dispatcher.setMaxLatency((int) (mFormat.getSampleRate() / 5), AudioDispatcher.OverrunPolicy.SKIP_FRAME);
+			//每块数据使用池中的事件，第一个波形图分支保留时复制一次，其他分支共享这份数据
+			//波形图需要每块的原始数据
+			dispatcher.setWaveformChartData(true);
+			dispatcher.setEventPool(new AudioEventPool(dispatcher.getFormat(), 64));
 			wsola.setDispatcher(dispatcher);
-			dispatcher.addAudioProcessor(wsola);
-			dispatcher.addAudioProcessor(new WaveformChartProcessor(analysisFrameWaveformChart));
-			dispatcher.addAudioProcessor(new WaveformChartProcessor(inputWaveformChart));
-			dispatcher.addAudioProcessor(new WaveformChartProcessor(outputWaveformChartWsola));
-			dispatcher.addAudioProcessor(rateTransposer);
-			//dispatcher.addAudioProcessor(new WaveformChartProcessor(outputWaveformChartRt));
-			dispatcher.addAudioProcessor(gain);
-			dispatcher.addAudioProcessor(audioPlayer);
+			//波形图作为WSOLA之后的分支，与播放分支共享数据，变调和音量不会影响波形图
+			ProcessorGraph graph = new ProcessorGraph();
+			ProcessorGraph.Node wsolaNode = graph.add(wsola);
+			graph.add(new WaveformChartProcessor(analysisFrameWaveformChart), wsolaNode);
+			graph.add(new WaveformChartProcessor(inputWaveformChart), wsolaNode);
+			graph.add(new WaveformChartProcessor(outputWaveformChartWsola), wsolaNode);
+			ProcessorGraph.Node rateTransposerNode = graph.add(rateTransposer, wsolaNode);
+			//graph.add(new WaveformChartProcessor(outputWaveformChartRt), rateTransposerNode);
+			graph.add(audioPlayer, graph.add(gain, rateTransposerNode));
+			dispatcher.addAudioProcessor(graph);
 			
-			Thread t = new Thread(dispatcher);
-			t.start();
+			//处理快要来不及时先降低WSOLA的搜索精度，再把重采样换成线性插值
+			DeadlineScheduler deadlineScheduler = new DeadlineScheduler().add(wsola).add(rateTransposer);
+			dispatcher.setDeadlineScheduler(deadlineScheduler);
+			dispatcher.setOverrunListener(deadlineScheduler);
+			//各个处理器的耗时可以通过JMX查看
+			dispatcher.registerMBeans(curMixer.getMixerInfo().getName() + "@" + Integer.toHexString(System.identityHashCode(dispatcher)));
+			session = dispatcherPool.submit(dispatcher);
 		}catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -0,0 +1,132 @@
+package priv.droptea.emotion;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import priv.droptea.emotion.io.JVMAudioInputStream;
+import priv.droptea.emotion.processor.WaveFileWriter;
+
+/**
+ * Renders an audio file through a processing chain as fast as the CPU allows,
+ * without a sound card. The file is read block by block and the result is
+ * streamed to a WAV file, so memory use does not depend on the length of the
+ * recording. Add the processors to {@link #getDispatcher()}, as for live
+ * input, but leave out the {@link priv.droptea.emotion.processor.AudioPlayer}.
+ * <p>
+ * Rendering runs on the calling thread, to process many files use one
+ * renderer per file on a thread pool.
+ * </p>
+ * 离线渲染：不经过声卡，以最快速度处理音频文件并写入WAV文件
+ */
+public class OfflineRenderer {
+
+	/**
+	 * Receives the progress of a rendering.
+	 */
+	public interface ProgressListener {
+		/**
+		 * @param progress
+		 *            The fraction of the input processed, between zero and
+		 *            one. Negative if the length of the input is not known.
+		 * @param secondsProcessed
+		 *            The number of seconds of input processed.
+		 */
+		void progress(double progress, double secondsProcessed);
+	}
+
+	private final AudioDispatcher dispatcher;
+
+	private ProgressListener progressListener;
+
+	private double progressStep = 0.01;
+
+	/**
+	 * Opens a file for rendering. Files that are not PCM are decoded to 16 bit
+	 * PCM if the JVM has a decoder for them.
+	 *
+	 * @param input
+	 *            The audio file to render.
+	 * @param audioBufferSize
+	 *            The block size of the dispatcher.
+	 * @param bufferOverlap
+	 *            The overlap between blocks.
+	 * @throws UnsupportedAudioFileException
+	 *             If the file format is not supported.
+	 * @throws IOException
+	 *             If the file can not be read.
+	 */
+	public OfflineRenderer(File input, int audioBufferSize, int bufferOverlap) throws UnsupportedAudioFileException, IOException {
+		AudioInputStream stream = AudioSystem.getAudioInputStream(input);
+		AudioFormat format = stream.getFormat();
+		if (format.getEncoding() != AudioFormat.Encoding.PCM_SIGNED && format.getEncoding() != AudioFormat.Encoding.PCM_UNSIGNED) {
+			AudioFormat pcm = new AudioFormat(format.getSampleRate(), 16, format.getChannels(), true, false);
+			stream = AudioSystem.getAudioInputStream(pcm, stream);
+		}
+		dispatcher = new AudioDispatcher(new JVMAudioInputStream(stream), audioBufferSize, bufferOverlap);
+	}
+
+	/**
+	 * @return The dispatcher that runs the chain, to add processors to.
+	 */
+	public AudioDispatcher getDispatcher() {
+		return dispatcher;
+	}
+
+	/**
+	 * @param listener
+	 *            Called on the rendering thread whenever the progress grew by
+	 *            at least the step, and once at the end.
+	 * @param step
+	 *            The minimum progress between two calls, e.g. 0.01.
+	 */
+	public void setProgressListener(ProgressListener listener, double step) {
+		this.progressListener = listener;
+		this.progressStep = step;
+	}
+
+	/**
+	 * Runs the chain over the whole input and writes the output of the last
+	 * processor to a WAV file. Returns when the input is processed.
+	 *
+	 * @param output
+	 *            The WAV file to write, in the format of the input.
+	 * @throws IOException
+	 *             If the output file can not be created.
+	 */
+	public void render(File output) throws IOException {
+		WaveFileWriter writer = new WaveFileWriter(dispatcher.getFormat(), output);
+		dispatcher.addAudioProcessor(writer);
+		try {
+			render();
+		} finally {
+			dispatcher.removeAudioProcessor(writer);
+		}
+	}
+
+	/**
+	 * Runs the chain over the whole input, the processors decide where the
+	 * output goes.
+	 */
+	public void render() {
+		AudioEvent audioEvent = dispatcher.getAudioEvent();
+		double reported = 0;
+		dispatcher.prepareDispatching();
+		while (dispatcher.dispatchNextBlock()) {
+			if (progressListener != null) {
+				double progress = audioEvent.getProgress();
+				if (progress < 0 || progress - reported >= progressStep) {
+					reported = progress;
+					progressListener.progress(progress, audioEvent.getTimeStamp());
+				}
+			}
+		}
+		if (progressListener != null) {
+			progressListener.progress(audioEvent.getProgress() < 0 ? -1 : 1, dispatcher.secondsProcessed());
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package priv.droptea.emotion;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+
+import priv.droptea.emotion.processor.AudioProcessor;
+
+/**
+ * Compiles a list of processors into one method handle which runs them in
+ * order and stops at the first processor that returns false. The handle is a
+ * tree of {@link MethodHandles#guardWithTest} combinators over the
+ * <code>process</code> methods, bound to the processors.
+ * <p>
+ * A loop over the processor list calls <code>process</code> from one call
+ * site for all processors. With more than two processor types that call site
+ * is megamorphic and the JIT can not inline across processors. The JVM
+ * specializes a hot method handle for the processors bound into it, so the
+ * compiled chain is inlined as one unit: every processor is called from a
+ * call site of its own.
+ * </p>
+ * 把处理器链编译成一个方法句柄，JIT可以把整条链内联成一个编译单元
+ */
+final class ProcessorChainCompiler {
+
+	private static final MethodType PROCESS_TYPE = MethodType.methodType(boolean.class, AudioEvent.class);
+
+	private static final MethodHandle PROCESS;
+
+	static {
+		try {
+			PROCESS = MethodHandles.publicLookup().findVirtual(AudioProcessor.class, "process", PROCESS_TYPE);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private ProcessorChainCompiler() {
+	}
+
+	/**
+	 * @param processors
+	 *            The processors, in the order they run.
+	 * @return A handle of type <code>(AudioEvent)boolean</code> which returns
+	 *         false if a processor stopped the chain.
+	 */
+	static MethodHandle compile(List<AudioProcessor> processors) {
+		MethodHandle proceed = MethodHandles.dropArguments(MethodHandles.constant(boolean.class, true), 0, AudioEvent.class);
+		MethodHandle stop = MethodHandles.dropArguments(MethodHandles.constant(boolean.class, false), 0, AudioEvent.class);
+		// built from the last processor backwards: run a processor, then the rest if it returned true
+		MethodHandle chain = proceed;
+		for (int i = processors.size() - 1; i >= 0; i--) {
+			MethodHandle process = PROCESS.bindTo(processors.get(i));
+			chain = MethodHandles.guardWithTest(process, chain, stop);
+		}
+		return chain;
+	}
+
+	/**
+	 * Runs a compiled chain.
+	 *
+	 * @return False if a processor stopped the chain.
+	 */
+	static boolean run(MethodHandle chain, AudioEvent audioEvent) {
+		try {
+			return (boolean) chain.invokeExact(audioEvent);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Error e) {
+			throw e;
+		} catch (Throwable e) {
+			// process declares no checked exceptions, but a processor may still throw one: pass it on unchanged as the loop does
+			throw ProcessorChainCompiler.<RuntimeException>rethrow(e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T extends Throwable> T rethrow(Throwable e) throws T {
+		throw (T) e;
+	}
+}
@@ -0,0 +1,136 @@
+package priv.droptea.emotion;
+
+import priv.droptea.emotion.processor.AudioProcessor;
+
+/**
+ * Runs an audio processor as a stage of a reactive pipeline. Every event is
+ * processed on the thread that delivers it and passed on if the processor
+ * returns true. Demand passes straight through: a request from downstream
+ * becomes the same request upstream, and an event the processor stops is
+ * replaced by requesting one more, so the stage never queues anything.
+ * <p>
+ * Events are expected to be retained events (see
+ * {@link DispatcherPublisher}): a stopped event is released, a passed event
+ * is released by downstream. If the processor puts an array it reuses into
+ * the event, the samples are copied out first, see
+ * {@link AudioEvent#detach()}.
+ * </p>
+ * 把音频处理器包装成响应式流的一个阶段，需求原样向上游传递，不排队
+ */
+public class ProcessorStage implements AudioFlow.Processor<AudioEvent, AudioEvent> {
+
+	private final AudioProcessor processor;
+
+	private AudioFlow.Subscription upstream;
+
+	private AudioFlow.Subscriber<? super AudioEvent> downstream;
+
+	/**
+	 * Demand from downstream that arrived before the upstream subscription.
+	 */
+	private long pendingDemand;
+
+	private boolean pendingCancel;
+
+	/**
+	 * @param processor
+	 *            The processor to run on every event.
+	 */
+	public ProcessorStage(AudioProcessor processor) {
+		this.processor = processor;
+	}
+
+	@Override
+	public void onSubscribe(AudioFlow.Subscription subscription) {
+		long demand;
+		boolean cancel;
+		synchronized (this) {
+			if (upstream != null) {
+				subscription.cancel();
+				return;
+			}
+			upstream = subscription;
+			demand = pendingDemand;
+			cancel = pendingCancel;
+			pendingDemand = 0;
+		}
+		if (cancel) {
+			subscription.cancel();
+		} else if (demand > 0) {
+			subscription.request(demand);
+		}
+	}
+
+	@Override
+	public void onNext(AudioEvent audioEvent) {
+		if (processor.process(audioEvent)) {
+			audioEvent.detach();
+			downstream.onNext(audioEvent);
+		} else {
+			audioEvent.release();
+			upstream.request(1);
+		}
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		processor.processingFinished();
+		downstream.onError(throwable);
+	}
+
+	@Override
+	public void onComplete() {
+		processor.processingFinished();
+		downstream.onComplete();
+	}
+
+	@Override
+	public void subscribe(AudioFlow.Subscriber<? super AudioEvent> subscriber) {
+		synchronized (this) {
+			if (downstream == null) {
+				downstream = subscriber;
+				subscriber = null;
+			}
+		}
+		if (subscriber != null) {
+			subscriber.onSubscribe(new AudioFlow.Subscription() {
+				@Override
+				public void request(long n) {
+				}
+
+				@Override
+				public void cancel() {
+				}
+			});
+			subscriber.onError(new IllegalStateException("A stage publishes to one subscriber only"));
+			return;
+		}
+		downstream.onSubscribe(new AudioFlow.Subscription() {
+			@Override
+			public void request(long n) {
+				AudioFlow.Subscription subscription;
+				synchronized (ProcessorStage.this) {
+					subscription = upstream;
+					if (subscription == null) {
+						pendingDemand = pendingDemand + n < 0 ? Long.MAX_VALUE : pendingDemand + n;
+						return;
+					}
+				}
+				subscription.request(n);
+			}
+
+			@Override
+			public void cancel() {
+				AudioFlow.Subscription subscription;
+				synchronized (ProcessorStage.this) {
+					subscription = upstream;
+					if (subscription == null) {
+						pendingCancel = true;
+						return;
+					}
+				}
+				subscription.cancel();
+			}
+		});
+	}
+}
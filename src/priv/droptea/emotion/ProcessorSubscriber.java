@@ -0,0 +1,108 @@
+package priv.droptea.emotion;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import priv.droptea.emotion.processor.AudioProcessor;
+
+/**
+ * Ends a reactive pipeline in an audio processor, e.g. an
+ * {@link priv.droptea.emotion.processor.AudioPlayer} or a
+ * {@link priv.droptea.emotion.processor.WaveFileWriter}. It keeps a bounded
+ * number of events requested: when the processor is slow, no more are
+ * requested and the publisher stops reading. Every event is released after
+ * processing.
+ * 响应式流的终点：把事件交给音频处理器，最多只请求固定数量的事件
+ */
+public class ProcessorSubscriber implements AudioFlow.Subscriber<AudioEvent> {
+
+	private static final Logger LOG = Logger.getLogger(ProcessorSubscriber.class.getName());
+
+	private final AudioProcessor processor;
+
+	private final int prefetch;
+
+	private AudioFlow.Subscription subscription;
+
+	/**
+	 * Events processed since the last request.
+	 */
+	private int consumed;
+
+	private volatile Throwable error;
+
+	private final CountDownLatch finished = new CountDownLatch(1);
+
+	/**
+	 * @param processor
+	 *            The processor that consumes the events.
+	 * @param prefetch
+	 *            The maximum number of events requested but not processed.
+	 */
+	public ProcessorSubscriber(AudioProcessor processor, int prefetch) {
+		this.processor = processor;
+		this.prefetch = Math.max(1, prefetch);
+	}
+
+	@Override
+	public void onSubscribe(AudioFlow.Subscription newSubscription) {
+		subscription = newSubscription;
+		subscription.request(prefetch);
+	}
+
+	@Override
+	public void onNext(AudioEvent audioEvent) {
+		try {
+			processor.process(audioEvent);
+		} finally {
+			audioEvent.release();
+		}
+		// request in batches of half the prefetch, not per event
+		if (++consumed >= (prefetch + 1) / 2) {
+			subscription.request(consumed);
+			consumed = 0;
+		}
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		error = throwable;
+		LOG.log(Level.WARNING, "Audio pipeline failed", throwable);
+		processor.processingFinished();
+		finished.countDown();
+	}
+
+	@Override
+	public void onComplete() {
+		processor.processingFinished();
+		finished.countDown();
+	}
+
+	/**
+	 * Stops the pipeline, the processor is not finished.
+	 */
+	public void cancel() {
+		if (subscription != null) {
+			subscription.cancel();
+		}
+		finished.countDown();
+	}
+
+	/**
+	 * Waits until the pipeline completed, failed or was cancelled.
+	 *
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting.
+	 */
+	public void awaitFinished() throws InterruptedException {
+		finished.await();
+	}
+
+	/**
+	 * @return The failure of the pipeline, null if it did not fail.
+	 */
+	public Throwable getError() {
+		return error;
+	}
+}
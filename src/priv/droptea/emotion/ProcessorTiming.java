@@ -0,0 +1,113 @@
+package priv.droptea.emotion;
+
+import priv.droptea.emotion.util.TimingHistogram;
+
+/**
+ * Processing time of one audio processor (or of the whole chain) of a
+ * dispatcher. Every call to <code>process</code> is recorded in a histogram,
+ * next to the duration of the audio the block advanced. Their ratio is the
+ * real-time factor: below one the processor keeps up with real time, a chain
+ * with a total above one falls behind.
+ * <p>
+ * Only the dispatcher thread records, the values can be read from any thread,
+ * e.g. over JMX, see {@link AudioDispatcher#registerMBeans(String)}.
+ * </p>
+ * 处理器耗时统计：耗时分布和实时率（处理耗时/音频时长）
+ */
+public class ProcessorTiming implements ProcessorTimingMBean {
+
+	private final String processorName;
+
+	private final TimingHistogram histogram = new TimingHistogram();
+
+	private volatile long audioNanos;
+
+	private volatile double lastRealTimeFactor;
+
+	ProcessorTiming(String processorName) {
+		this.processorName = processorName;
+	}
+
+	/**
+	 * Records one call. Only called by the dispatcher thread.
+	 *
+	 * @param processingNanos
+	 *            The time spent in the processor.
+	 * @param blockAudioNanos
+	 *            The duration of the audio the block advanced.
+	 */
+	void record(long processingNanos, long blockAudioNanos) {
+		histogram.record(processingNanos);
+		audioNanos += blockAudioNanos;
+		if (blockAudioNanos > 0) {
+			lastRealTimeFactor = (double) processingNanos / blockAudioNanos;
+		}
+	}
+
+	/**
+	 * @return The recorded processing times in nanoseconds.
+	 */
+	public TimingHistogram getHistogram() {
+		return histogram;
+	}
+
+	@Override
+	public String getProcessorName() {
+		return processorName;
+	}
+
+	@Override
+	public long getCalls() {
+		return histogram.getCount();
+	}
+
+	@Override
+	public double getMeanMicros() {
+		return histogram.getMean() / 1000.0;
+	}
+
+	@Override
+	public double getMaxMicros() {
+		return histogram.getMax() / 1000.0;
+	}
+
+	@Override
+	public double getMedianMicros() {
+		return histogram.getValueAtPercentile(50) / 1000.0;
+	}
+
+	@Override
+	public double get99thPercentileMicros() {
+		return histogram.getValueAtPercentile(99) / 1000.0;
+	}
+
+	@Override
+	public double get999thPercentileMicros() {
+		return histogram.getValueAtPercentile(99.9) / 1000.0;
+	}
+
+	/**
+	 * @return The total processing time divided by the total duration of the
+	 *         audio processed.
+	 */
+	@Override
+	public double getRealTimeFactor() {
+		long audio = audioNanos;
+		return audio == 0 ? 0 : (double) histogram.getTotal() / audio;
+	}
+
+	/**
+	 * @return The real-time factor of the last block.
+	 */
+	@Override
+	public double getLastRealTimeFactor() {
+		return lastRealTimeFactor;
+	}
+
+	@Override
+	public void reset() {
+		histogram.reset();
+		audioNanos = 0;
+		lastRealTimeFactor = 0;
+	}
+}
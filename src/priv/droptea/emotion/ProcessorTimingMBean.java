@@ -0,0 +1,28 @@
+package priv.droptea.emotion;
+
+/**
+ * Management interface of {@link ProcessorTiming}, one MBean per processor and
+ * one for the whole chain of a dispatcher.
+ */
+public interface ProcessorTimingMBean {
+
+	String getProcessorName();
+
+	long getCalls();
+
+	double getMeanMicros();
+
+	double getMaxMicros();
+
+	double getMedianMicros();
+
+	double get99thPercentileMicros();
+
+	double get999thPercentileMicros();
+
+	double getRealTimeFactor();
+
+	double getLastRealTimeFactor();
+
+	void reset();
+}
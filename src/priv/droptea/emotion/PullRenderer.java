@@ -0,0 +1,165 @@
+package priv.droptea.emotion;
+
+import java.util.Arrays;
+
+import priv.droptea.emotion.processor.AudioProcessor;
+import priv.droptea.emotion.util.FloatRingBuffer;
+
+/**
+ * Pulls exactly the requested number of samples from a processing chain, for
+ * sinks that ask for audio in a callback. The dispatcher pushes blocks of the
+ * analysis frame length through the chain and processors like the rate
+ * transposer change the block size, so the output of the chain is collected
+ * in a FIFO. {@link #render(float[], int)} takes the samples from the FIFO and
+ * runs the chain on the calling thread only when the FIFO holds too few.
+ * The output latency is then the callback size plus at most one block of the
+ * chain, instead of the block size of the dispatcher.
+ * <p>
+ * Build the chain before the first call of {@link #render(float[], int)}: the
+ * output is taken after the last processor, leave out the
+ * {@link priv.droptea.emotion.processor.AudioPlayer}. Only the new part of
+ * every block is output, not the overlap with the previous block. Channels
+ * are interleaved. Do not run the dispatcher itself.
+ * </p>
+ * 拉取模式：回调每次要多少样本就取多少，输出FIFO不够时才在调用线程上运行处理链
+ */
+public class PullRenderer {
+
+	private final AudioDispatcher dispatcher;
+
+	/**
+	 * Output of the chain waiting to be pulled. Filled and read on the
+	 * rendering thread only.
+	 */
+	private FloatRingBuffer fifo;
+
+	/**
+	 * Interleaving buffer for planar events.
+	 */
+	private float[] interleaved;
+
+	private boolean started;
+
+	private boolean finished;
+
+	/**
+	 * Collects the output of the chain, the last processor.
+	 */
+	private final AudioProcessor collector = new AudioProcessor() {
+		@Override
+		public boolean process(AudioEvent audioEvent) {
+			collect(audioEvent);
+			return true;
+		}
+
+		@Override
+		public void processingFinished() {
+			finished = true;
+		}
+	};
+
+	/**
+	 * @param dispatcher
+	 *            The dispatcher with the processing chain.
+	 */
+	public PullRenderer(AudioDispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+		fifo = new FloatRingBuffer(4096);
+	}
+
+	/**
+	 * Fills the output with the next samples of the chain.
+	 *
+	 * @param out
+	 *            The array to fill from index zero.
+	 * @param n
+	 *            The number of samples to deliver.
+	 * @return The number of samples from the chain, less than n only at the
+	 *         end of the stream. The rest of the output is silence.
+	 */
+	public int render(float[] out, int n) {
+		return render(out, 0, n);
+	}
+
+	/**
+	 * Fills part of the output with the next samples of the chain, see
+	 * {@link #render(float[], int)}.
+	 *
+	 * @param out
+	 *            The array to fill.
+	 * @param offset
+	 *            The index of the first sample to fill.
+	 * @param n
+	 *            The number of samples to deliver.
+	 * @return The number of samples from the chain.
+	 */
+	public int render(float[] out, int offset, int n) {
+		if (!started) {
+			started = true;
+			dispatcher.addAudioProcessor(collector);
+			dispatcher.prepareDispatching();
+		}
+		while (fifo.available() < n && !finished) {
+			if (!dispatcher.dispatchNextBlock()) {
+				finished = true;
+			}
+		}
+		int rendered = fifo.read(out, offset, n);
+		if (rendered < n) {
+			Arrays.fill(out, offset + rendered, offset + n, 0);
+		}
+		return rendered;
+	}
+
+	private void collect(AudioEvent audioEvent) {
+		int channels = audioEvent.isPlanar() ? audioEvent.getChannelCount() : 1;
+		int start = audioEvent.getBufferOffset() + audioEvent.getOverlap();
+		int frames = audioEvent.getBufferSize() - audioEvent.getOverlap();
+		int length = frames * channels;
+		if (fifo.remaining() < length) {
+			// a block larger than ever before, move the queued samples to a larger FIFO
+			FloatRingBuffer larger = new FloatRingBuffer(fifo.available() + length);
+			float[] queued = new float[fifo.available()];
+			fifo.read(queued, 0, queued.length);
+			larger.write(queued, 0, queued.length);
+			fifo = larger;
+		}
+		if (channels == 1) {
+			fifo.write(audioEvent.getFloatBufferArray(), start, length);
+			return;
+		}
+		if (interleaved == null || interleaved.length < length) {
+			interleaved = new float[length];
+		}
+		float[][] channelBuffers = audioEvent.getChannelBufferArrays();
+		for (int c = 0; c < channels; c++) {
+			for (int i = 0; i < frames; i++) {
+				interleaved[i * channels + c] = channelBuffers[c][start + i];
+			}
+		}
+		fifo.write(interleaved, 0, length);
+	}
+
+	/**
+	 * @return The number of samples processed but not pulled yet.
+	 */
+	public int getBufferedSamples() {
+		return fifo.available();
+	}
+
+	/**
+	 * @return True if the stream ended and every sample was pulled.
+	 */
+	public boolean isFinished() {
+		return finished && fifo.available() == 0;
+	}
+
+	/**
+	 * Stops the dispatcher, the processors are finished.
+	 */
+	public void close() {
+		if (!dispatcher.isStopped()) {
+			dispatcher.stop();
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package priv.droptea.emotion;
+
+import java.util.function.BooleanSupplier;
+
+import priv.droptea.emotion.io.TarsosDSPAudioFormat;
+import priv.droptea.emotion.io.TarsosDSPAudioInputStream;
+
+/**
+ * Runs a processing chain on audio that arrives in chunks of any size, e.g.
+ * network packets, without a thread of its own. Every call of
+ * {@link #feed(byte[], int, int)} runs the chain on the calling thread for
+ * each block that is complete, the bytes of an incomplete block are kept for
+ * the next chunk.
+ * <p>
+ * The dispatcher reads the blocks straight from the fed chunk, only the
+ * remainder of a chunk, less than one block, is copied. Add the processors to
+ * {@link #getDispatcher()}, but do not run the dispatcher or give it a
+ * capture thread. One feeder is fed by one thread at a time.
+ * </p>
+ * 推送模式：调用方送入任意大小的数据块，凑够一块音频就在调用线程上运行处理链，不需要单独的线程
+ */
+public class PushFeeder {
+
+	/**
+	 * The input of the dispatcher: the bytes kept from earlier chunks, then
+	 * the chunk being fed.
+	 */
+	private static final class ChunkStream implements TarsosDSPAudioInputStream {
+
+		private final TarsosDSPAudioFormat format;
+
+		private byte[] carry = new byte[0];
+
+		private int carryStart, carryEnd;
+
+		private byte[] chunk;
+
+		private int chunkStart, chunkEnd;
+
+		private boolean ended;
+
+		ChunkStream(TarsosDSPAudioFormat format) {
+			this.format = format;
+		}
+
+		int available() {
+			return carryEnd - carryStart + chunkEnd - chunkStart;
+		}
+
+		void setChunk(byte[] chunk, int offset, int length) {
+			this.chunk = chunk;
+			chunkStart = offset;
+			chunkEnd = offset + length;
+		}
+
+		/**
+		 * Copies what is left of the chunk behind the kept bytes, the caller
+		 * may reuse the chunk after feeding it.
+		 */
+		void keepRest() {
+			int kept = carryEnd - carryStart;
+			int rest = chunkEnd - chunkStart;
+			if (kept + rest > carry.length) {
+				byte[] larger = new byte[Math.max(2 * carry.length, kept + rest)];
+				System.arraycopy(carry, carryStart, larger, 0, kept);
+				carry = larger;
+			} else {
+				System.arraycopy(carry, carryStart, carry, 0, kept);
+			}
+			if (rest > 0) {
+				System.arraycopy(chunk, chunkStart, carry, kept, rest);
+			}
+			carryStart = 0;
+			carryEnd = kept + rest;
+			chunk = null;
+			chunkStart = chunkEnd = 0;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (available() == 0) {
+				return ended ? -1 : 0;
+			}
+			int fromCarry = Math.min(len, carryEnd - carryStart);
+			System.arraycopy(carry, carryStart, b, off, fromCarry);
+			carryStart += fromCarry;
+			int fromChunk = Math.min(len - fromCarry, chunkEnd - chunkStart);
+			if (fromChunk > 0) {
+				System.arraycopy(chunk, chunkStart, b, off + fromCarry, fromChunk);
+				chunkStart += fromChunk;
+			}
+			return fromCarry + fromChunk;
+		}
+
+		@Override
+		public long skip(long bytesToSkip) {
+			int fromCarry = (int) Math.min(bytesToSkip, carryEnd - carryStart);
+			carryStart += fromCarry;
+			int fromChunk = (int) Math.min(bytesToSkip - fromCarry, chunkEnd - chunkStart);
+			chunkStart += fromChunk;
+			return fromCarry + fromChunk;
+		}
+
+		@Override
+		public void close() {
+			ended = true;
+		}
+
+		@Override
+		public TarsosDSPAudioFormat getFormat() {
+			return format;
+		}
+
+		@Override
+		public long getFrameLength() {
+			return -1;
+		}
+	}
+
+	private final ChunkStream stream;
+
+	private final AudioDispatcher dispatcher;
+
+	private boolean started;
+
+	/**
+	 * @param format
+	 *            The format of the fed bytes.
+	 * @param audioBufferSize
+	 *            The block size of the dispatcher.
+	 * @param bufferOverlap
+	 *            The overlap between blocks.
+	 */
+	public PushFeeder(TarsosDSPAudioFormat format, int audioBufferSize, int bufferOverlap) {
+		stream = new ChunkStream(format);
+		dispatcher = new AudioDispatcher(stream, audioBufferSize, bufferOverlap);
+		// a batch (see AudioDispatcher#setBatchSize(int)) only takes the blocks fed so far
+		dispatcher.setInputReadyCheck(new BooleanSupplier() {
+			@Override
+			public boolean getAsBoolean() {
+				return stream.ended || blockFed();
+			}
+		});
+	}
+	
+	/**
+	 * @return True if the bytes fed so far hold the next block.
+	 */
+	private boolean blockFed() {
+		return stream.available() >= dispatcher.samplesNeeded() * stream.getFormat().getFrameSize();
+	}
+
+	/**
+	 * @return The dispatcher that runs the chain, to add processors to.
+	 */
+	public AudioDispatcher getDispatcher() {
+		return dispatcher;
+	}
+
+	/**
+	 * Processes every block that is complete with the given bytes. The
+	 * chunk is not used after the call returns.
+	 *
+	 * @param chunk
+	 *            An array with audio in the format of the feeder.
+	 * @param off
+	 *            The index of the first byte.
+	 * @param len
+	 *            The number of bytes, any number.
+	 * @return The number of blocks processed.
+	 */
+	public int feed(byte[] chunk, int off, int len) {
+		if (stream.ended) {
+			throw new IllegalStateException("Feeding after the end of the stream");
+		}
+		if (!started) {
+			started = true;
+			dispatcher.prepareDispatching();
+		}
+		stream.setChunk(chunk, off, len);
+		long dispatched = dispatcher.getBlocksDispatched();
+		while (!dispatcher.isStopped() && blockFed()) {
+			dispatcher.dispatchNextBlock();
+		}
+		stream.keepRest();
+		return (int) (dispatcher.getBlocksDispatched() - dispatched);
+	}
+
+	/**
+	 * Ends the stream: processes the kept bytes as the last block, padded as
+	 * configured on the dispatcher, and finishes the processors.
+	 */
+	public void finish() {
+		stream.ended = true;
+		if (!started) {
+			started = true;
+			dispatcher.prepareDispatching();
+		}
+		while (dispatcher.dispatchNextBlock()) {
+			// the last blocks, until the dispatcher reads the end of the stream
+		}
+	}
+
+	/**
+	 * @return The number of bytes kept for the next block.
+	 */
+	public int getPendingBytes() {
+		return stream.available();
+	}
+}
@@ -0,0 +1,286 @@
+package priv.droptea.emotion.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a PCM WAV file through a memory mapping of its data chunk instead of
+ * the javax.sound stream stack. A read is one bulk copy out of the page
+ * cache, skipping only moves the position. Files larger than one mapping can
+ * hold (2 GB) are mapped in windows, the window moves along with the
+ * position.
+ * <p>
+ * Supported are integer PCM of 8 to 32 bits and 32 or 64 bit float samples,
+ * also in WAVE_FORMAT_EXTENSIBLE files. A data chunk with a size that is zero or
+ * does not fit the file, as left by an interrupted recording, is read up to the
+ * end of the file.
+ * </p>
+ * 通过内存映射读取WAV文件的数据块，跳转无需读取，大文件按窗口映射
+ */
+public class MappedWavInputStream implements TarsosDSPAudioInputStream {
+
+	/**
+	 * The largest size of a mapping window.
+	 */
+	private static final long WINDOW_SIZE = 1L << 30;
+
+	private static final int FORMAT_PCM = 1;
+
+	private static final int FORMAT_IEEE_FLOAT = 3;
+
+	private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+
+	private final File file;
+
+	private final FileChannel channel;
+
+	private final TarsosDSPAudioFormat format;
+
+	/**
+	 * The position of the data chunk in the file and its length in bytes.
+	 */
+	private final long dataStart, dataLength;
+
+	/**
+	 * The size of a mapping window, whole frames so that no sample is split
+	 * between two windows.
+	 */
+	private final long windowSize;
+
+	/**
+	 * The read position, relative to the data start.
+	 */
+	private long position;
+
+	private MappedByteBuffer window;
+
+	/**
+	 * The position of the window, relative to the data start.
+	 */
+	private long windowStart;
+
+	private TarsosDSPAudioFloatConverter converter;
+
+	private byte[] conversionBuffer;
+
+	/**
+	 * Opens the file and reads the header.
+	 *
+	 * @param file
+	 *            The WAV file.
+	 * @throws IOException
+	 *             If the file can not be read or is not a supported WAV file.
+	 */
+	public MappedWavInputStream(File file) throws IOException {
+		this.file = file;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			long fileLength = channel.size();
+			// the chunks are walked with positional reads, chunks before the data chunk can have any size
+			ByteBuffer header = readAt(0, 12);
+			if (header.remaining() < 12 || header.getInt(0) != fourCC("RIFF") || header.getInt(8) != fourCC("WAVE")) {
+				throw new IOException(file + " is not a WAV file");
+			}
+			TarsosDSPAudioFormat fmt = null;
+			long data = -1, length = 0;
+			long chunk = 12;
+			while (chunk + 8 <= fileLength) {
+				ByteBuffer chunkHeader = readAt(chunk, 8);
+				if (chunkHeader.remaining() < 8) {
+					break;
+				}
+				int id = chunkHeader.getInt(0);
+				long size = chunkHeader.getInt(4) & 0xFFFFFFFFL;
+				if (id == fourCC("fmt ")) {
+					// the extensible format chunk is 40 bytes, the rest is not used
+					ByteBuffer body = readAt(chunk + 8, (int) Math.min(size, 64));
+					fmt = parseFormat(body, body.remaining());
+				} else if (id == fourCC("data")) {
+					data = chunk + 8;
+					// recorders that were interrupted leave 0 or a size beyond the end of the file
+					length = size == 0 ? fileLength - data : Math.min(size, fileLength - data);
+					break;
+				}
+				// chunks are padded to an even size
+				chunk += 8 + size + (size & 1);
+			}
+			if (fmt == null || data < 0) {
+				throw new IOException(file + " has no format or data chunk");
+			}
+			format = fmt;
+			dataStart = data;
+			dataLength = length - length % format.getFrameSize();
+			windowSize = WINDOW_SIZE - WINDOW_SIZE % format.getFrameSize();
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		} catch (RuntimeException e) {
+			channel.close();
+			throw new IOException(file + " has a damaged header", e);
+		}
+	}
+
+	/**
+	 * Reads a part of the file, fewer bytes at the end of the file.
+	 *
+	 * @return The bytes read, little endian.
+	 */
+	private ByteBuffer readAt(long position, int size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+			// read until the buffer is full or the file ends
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private TarsosDSPAudioFormat parseFormat(ByteBuffer body, int size) throws IOException {
+		if (size < 16) {
+			throw new IOException(file + " has an inconsistent format chunk");
+		}
+		int tag = body.getShort(0) & 0xFFFF;
+		int channels = body.getShort(2) & 0xFFFF;
+		int sampleRate = body.getInt(4);
+		int blockAlign = body.getShort(12) & 0xFFFF;
+		int bits = body.getShort(14) & 0xFFFF;
+		if (tag == FORMAT_EXTENSIBLE && size >= 26) {
+			// the first two bytes of the sub format GUID are the format tag
+			tag = body.getShort(24) & 0xFFFF;
+		}
+		TarsosDSPAudioFormat.Encoding encoding;
+		if (tag == FORMAT_PCM) {
+			encoding = bits > 8 ? TarsosDSPAudioFormat.Encoding.PCM_SIGNED : TarsosDSPAudioFormat.Encoding.PCM_UNSIGNED;
+		} else if (tag == FORMAT_IEEE_FLOAT && (bits == 32 || bits == 64)) {
+			encoding = TarsosDSPAudioFloatConverter.PCM_FLOAT;
+		} else {
+			throw new IOException(file + " uses WAV format " + tag + " with " + bits + " bits, only PCM is supported");
+		}
+		if (channels == 0 || blockAlign != (bits + 7) / 8 * channels) {
+			throw new IOException(file + " has an inconsistent format chunk");
+		}
+		return new TarsosDSPAudioFormat(encoding, sampleRate, bits, channels, blockAlign, sampleRate, false);
+	}
+
+	private static int fourCC(String id) {
+		return id.charAt(0) | id.charAt(1) << 8 | id.charAt(2) << 16 | id.charAt(3) << 24;
+	}
+
+	/**
+	 * Makes sure the window holds the read position.
+	 *
+	 * @return The number of bytes from the read position to the end of the
+	 *         window.
+	 */
+	private int mapWindow() throws IOException {
+		if (window == null || position < windowStart || position >= windowStart + window.limit()) {
+			windowStart = position - position % windowSize;
+			long size = Math.min(windowSize, dataLength - windowStart);
+			window = channel.map(FileChannel.MapMode.READ_ONLY, dataStart + windowStart, size);
+			window.order(ByteOrder.LITTLE_ENDIAN);
+		}
+		return (int) (windowStart + window.limit() - position);
+	}
+
+	@Override
+	public long skip(long bytesToSkip) throws IOException {
+		long skipped = Math.max(0, Math.min(bytesToSkip, dataLength - position));
+		position += skipped;
+		return skipped;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (position >= dataLength) {
+			return -1;
+		}
+		int total = 0;
+		while (total < len && position < dataLength) {
+			int count = Math.min(len - total, mapWindow());
+			window.position((int) (position - windowStart));
+			window.get(b, off + total, count);
+			position += count;
+			total += count;
+		}
+		return total;
+	}
+
+	/**
+	 * Reads and converts samples straight from the mapping. 16 bit files are
+	 * converted without copying the bytes first, other formats go through the
+	 * converter of the format. This is for code that takes the samples itself,
+	 * a dispatcher reads the bytes with {@link #read(byte[], int, int)} and
+	 * converts them.
+	 *
+	 * @param target
+	 *            The target array, samples of all channels interleaved.
+	 * @param offset
+	 *            The index in the target of the first sample.
+	 * @param length
+	 *            The number of samples to read, whole frames are read.
+	 * @return The number of samples read, -1 at the end of the data.
+	 * @throws IOException
+	 *             If the file can not be read.
+	 */
+	public int readFloats(float[] target, int offset, int length) throws IOException {
+		if (position >= dataLength) {
+			return -1;
+		}
+		int sampleBytes = format.getFrameSize() / format.getChannels();
+		length -= length % format.getChannels();
+		int total = 0;
+		while (total < length && position < dataLength) {
+			int count = Math.min(length - total, mapWindow() / sampleBytes);
+			int index = (int) (position - windowStart);
+			if (sampleBytes == 2 && format.getEncoding() == TarsosDSPAudioFormat.Encoding.PCM_SIGNED) {
+				for (int i = 0; i < count; i++) {
+					target[offset + total + i] = window.getShort(index + 2 * i) * (1.0f / 32767.0f);
+				}
+			} else {
+				if (converter == null) {
+					converter = TarsosDSPAudioFloatConverter.getSharedConverter(format);
+				}
+				int bytes = count * sampleBytes;
+				if (conversionBuffer == null || conversionBuffer.length < bytes) {
+					conversionBuffer = new byte[bytes];
+				}
+				window.position(index);
+				window.get(conversionBuffer, 0, bytes);
+				converter.toFloatArray(conversionBuffer, 0, target, offset + total, count);
+			}
+			position += (long) count * sampleBytes;
+			total += count;
+		}
+		return total;
+	}
+
+	/**
+	 * Moves the read position, e.g. to seek in a long recording.
+	 *
+	 * @param frame
+	 *            The index of the frame to read next.
+	 */
+	public void seek(long frame) {
+		position = Math.max(0, Math.min(frame * format.getFrameSize(), dataLength));
+	}
+
+	@Override
+	public void close() throws IOException {
+		window = null;
+		channel.close();
+	}
+
+	@Override
+	public TarsosDSPAudioFormat getFormat() {
+		return format;
+	}
+
+	@Override
+	public long getFrameLength() {
+		return dataLength / format.getFrameSize();
+	}
+}
@@ -0,0 +1,271 @@
+package priv.droptea.emotion.io;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads a stream ahead on a background thread, so the dispatcher finds the
+ * next blocks already in memory: the latency of slow storage overlaps with
+ * the processing instead of adding to it. The data goes through a fixed set
+ * of recycled chunks, when they are all full the read ahead thread waits for
+ * the dispatcher.
+ * <p>
+ * The read ahead thread starts with the first read. A skip before that is
+ * passed to the stream, e.g. the skip to the start position of a dispatcher.
+ * </p>
+ * 后台线程预读音频流，磁盘等待与处理重叠，使用固定数量的循环缓冲区
+ */
+public class ReadAheadInputStream implements TarsosDSPAudioInputStream {
+
+	/**
+	 * How long the read ahead thread sleeps when the stream returns no data.
+	 */
+	private static final long PARK_NANOS = 500000;
+
+	/**
+	 * A piece of the stream read ahead.
+	 */
+	private static final class Chunk {
+
+		final byte[] data;
+
+		int length;
+
+		Chunk(int size) {
+			data = new byte[size];
+		}
+	}
+
+	/**
+	 * Marks the end of the stream in the queue of full chunks.
+	 */
+	private static final Chunk END_OF_STREAM = new Chunk(0);
+
+	private final TarsosDSPAudioInputStream stream;
+
+	private final BlockingQueue<Chunk> freeChunks;
+
+	private final BlockingQueue<Chunk> fullChunks;
+
+	private Thread thread;
+
+	private volatile boolean closed;
+
+	/**
+	 * The failure of the read ahead thread, reported after the data read
+	 * before it.
+	 */
+	private volatile IOException error;
+
+	/**
+	 * The chunk being read by the dispatcher and the position in it.
+	 */
+	private Chunk current;
+
+	private int currentPosition;
+
+	private boolean ended;
+
+	/**
+	 * @param stream
+	 *            The stream to read ahead.
+	 * @param chunkSize
+	 *            The number of bytes read at once, rounded down to whole
+	 *            frames, e.g. a few blocks of the dispatcher.
+	 * @param chunks
+	 *            The number of chunks, at most <code>chunks - 1</code> are read
+	 *            ahead while the dispatcher reads the other.
+	 */
+	public ReadAheadInputStream(TarsosDSPAudioInputStream stream, int chunkSize, int chunks) {
+		this.stream = stream;
+		int frameSize = Math.max(1, stream.getFormat().getFrameSize());
+		int size = Math.max(frameSize, chunkSize - chunkSize % frameSize);
+		chunks = Math.max(2, chunks);
+		freeChunks = new ArrayBlockingQueue<Chunk>(chunks);
+		// one more place for the end of stream marker
+		fullChunks = new ArrayBlockingQueue<Chunk>(chunks + 1);
+		for (int i = 0; i < chunks; i++) {
+			freeChunks.add(new Chunk(size));
+		}
+	}
+
+	private void startReadingAhead() {
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readAhead();
+			}
+		}, "Audio read ahead");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Body of the read ahead thread: fills free chunks until the end of the
+	 * stream, a failure or close.
+	 */
+	private void readAhead() {
+		try {
+			while (!closed) {
+				Chunk chunk = freeChunks.take();
+				chunk.length = 0;
+				int bytesRead = 0;
+				try {
+					while (chunk.length < chunk.data.length && !closed
+							&& (bytesRead = stream.read(chunk.data, chunk.length, chunk.data.length - chunk.length)) != -1) {
+						if (bytesRead == 0) {
+							// nothing available yet, wait instead of spinning
+							LockSupport.parkNanos(this, PARK_NANOS);
+						}
+						chunk.length += bytesRead;
+					}
+				} catch (IOException e) {
+					if (!closed) {
+						// the data read before the failure is passed on first
+						if (chunk.length > 0) {
+							fullChunks.put(chunk);
+						}
+						error = e;
+					}
+					return;
+				}
+				if (chunk.length > 0) {
+					fullChunks.put(chunk);
+				}
+				if (bytesRead == -1) {
+					break;
+				}
+			}
+		} catch (InterruptedException e) {
+			// closed while waiting for a free chunk
+		} finally {
+			fullChunks.offer(END_OF_STREAM);
+		}
+	}
+
+	/**
+	 * @return The chunk with the next data, null at the end of the stream or
+	 *         after a failure, see {@link #checkError()}.
+	 */
+	private Chunk currentChunk() {
+		if (current == null && !ended) {
+			if (thread == null) {
+				startReadingAhead();
+			}
+			current = takeUninterruptibly(fullChunks);
+			currentPosition = 0;
+			if (current == END_OF_STREAM) {
+				current = null;
+				ended = true;
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Reports the failure of the read ahead thread once the data read before
+	 * it is used up.
+	 */
+	private void checkError() throws IOException {
+		if (error != null) {
+			throw new IOException("Reading ahead failed", error);
+		}
+	}
+
+	/**
+	 * Gives the current chunk back to the read ahead thread when it is used
+	 * up.
+	 */
+	private void consumed(int bytes) {
+		currentPosition += bytes;
+		if (currentPosition == current.length) {
+			freeChunks.add(current);
+			current = null;
+		}
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int total = 0;
+		Chunk chunk;
+		while (total < len && (chunk = currentChunk()) != null) {
+			int count = Math.min(len - total, chunk.length - currentPosition);
+			System.arraycopy(chunk.data, currentPosition, b, off + total, count);
+			consumed(count);
+			total += count;
+		}
+		if (total == 0 && len > 0) {
+			checkError();
+			return -1;
+		}
+		return total;
+	}
+
+	@Override
+	public long skip(long bytesToSkip) throws IOException {
+		if (thread == null) {
+			return stream.skip(bytesToSkip);
+		}
+		long total = 0;
+		Chunk chunk;
+		while (total < bytesToSkip && (chunk = currentChunk()) != null) {
+			int count = (int) Math.min(bytesToSkip - total, chunk.length - currentPosition);
+			consumed(count);
+			total += count;
+		}
+		if (total == 0 && bytesToSkip > 0) {
+			checkError();
+		}
+		return total;
+	}
+
+	/**
+	 * @return The number of bytes read ahead and not yet read by the
+	 *         dispatcher.
+	 */
+	public long getBufferedBytes() {
+		long buffered = current == null ? 0 : current.length - currentPosition;
+		for (Chunk chunk : fullChunks) {
+			buffered += chunk.length;
+		}
+		return buffered;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		if (thread != null) {
+			thread.interrupt();
+		}
+		stream.close();
+	}
+
+	@Override
+	public TarsosDSPAudioFormat getFormat() {
+		return stream.getFormat();
+	}
+
+	@Override
+	public long getFrameLength() {
+		return stream.getFrameLength();
+	}
+
+	private static Chunk takeUninterruptibly(BlockingQueue<Chunk> queue) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return queue.take();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
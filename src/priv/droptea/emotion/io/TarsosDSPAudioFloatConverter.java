@@ -52,6 +52,8 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.DoubleBuffer;
 import java.nio.FloatBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import priv.droptea.emotion.io.TarsosDSPAudioFormat.Encoding;
 
@@ -75,6 +77,24 @@ public abstract class TarsosDSPAudioFloatConverter {
      * 
      **************************************************************************/
 
+    /**
+     * Scratch space for the masked bytes, one per thread, so a shared filter
+     * can serve several threads.
+     */
+    private static final ThreadLocal<byte[][]> mask_scratch =
+            new ThreadLocal<byte[][]>() {
+        protected byte[][] initialValue() {
+            return new byte[1][0];
+        }
+    };
+
+    private static byte[] maskBuffer(int len) {
+        byte[][] holder = mask_scratch.get();
+        if (holder[0].length < len)
+            holder[0] = new byte[len];
+        return holder[0];
+    }
+
     private static class AudioFloatLSBFilter extends TarsosDSPAudioFloatConverter {
 
         private TarsosDSPAudioFloatConverter converter;
@@ -85,8 +105,6 @@ public abstract class TarsosDSPAudioFloatConverter {
 
         final private byte mask;
 
-        private byte[] mask_buffer;
-
         public AudioFloatLSBFilter(TarsosDSPAudioFloatConverter converter,
         		TarsosDSPAudioFormat format) {
             int bits = format.getSampleSizeInBits();
@@ -130,8 +148,7 @@ public abstract class TarsosDSPAudioFloatConverter {
 
         public float[] toFloatArray(byte[] in_buff, int in_offset,
                 float[] out_buff, int out_offset, int out_len) {
-            if (mask_buffer == null || mask_buffer.length < in_buff.length)
-                mask_buffer = new byte[in_buff.length];
+            byte[] mask_buffer = maskBuffer(in_buff.length);
             System.arraycopy(in_buff, 0, mask_buffer, 0, in_buff.length);
             int in_offset_end = out_len * stepsize;
             for (int i = in_offset + offset; i < in_offset_end; i += stepsize) {
@@ -403,6 +420,39 @@ public abstract class TarsosDSPAudioFloatConverter {
             return out_buff;
         }
 
+        public float[][] toFloatArrays(byte[] in_buff, int in_offset,
+                float[][] out_buff, int out_offset, int out_frames) {
+            int stride = out_buff.length * 2;
+            int len = out_offset + out_frames;
+            for (int c = 0; c < out_buff.length; c++) {
+                float[] out = out_buff[c];
+                int ix = in_offset + c * 2;
+                for (int ox = out_offset; ox < len; ox++) {
+                    out[ox] = ((short) ((in_buff[ix] & 0xFF) | 
+                            (in_buff[ix + 1] << 8))) * (1.0f / 32767.0f);
+                    ix += stride;
+                }
+            }
+            return out_buff;
+        }
+
+        public byte[] toByteArray(float[][] in_buff, int in_offset,
+                int in_frames, byte[] out_buff, int out_offset) {
+            int stride = in_buff.length * 2;
+            int len = in_offset + in_frames;
+            for (int c = 0; c < in_buff.length; c++) {
+                float[] in = in_buff[c];
+                int ox = out_offset + c * 2;
+                for (int ix = in_offset; ix < len; ix++) {
+                    int x = (int) (in[ix] * 32767.0);
+                    out_buff[ox] = (byte) x;
+                    out_buff[ox + 1] = (byte) (x >>> 8);
+                    ox += stride;
+                }
+            }
+            return out_buff;
+        }
+
         public byte[] toByteArray(float[] in_buff, int in_offset, int in_len,
                 byte[] out_buff, int out_offset) {
             int ox = out_offset;
@@ -440,6 +490,39 @@ public abstract class TarsosDSPAudioFloatConverter {
             }
             return out_buff;
         }
+
+        public float[][] toFloatArrays(byte[] in_buff, int in_offset,
+                float[][] out_buff, int out_offset, int out_frames) {
+            int stride = out_buff.length * 2;
+            int len = out_offset + out_frames;
+            for (int c = 0; c < out_buff.length; c++) {
+                float[] out = out_buff[c];
+                int ix = in_offset + c * 2;
+                for (int ox = out_offset; ox < len; ox++) {
+                    out[ox] = ((short) ((in_buff[ix] << 8) | 
+                            (in_buff[ix + 1] & 0xFF))) * (1.0f / 32767.0f);
+                    ix += stride;
+                }
+            }
+            return out_buff;
+        }
+
+        public byte[] toByteArray(float[][] in_buff, int in_offset,
+                int in_frames, byte[] out_buff, int out_offset) {
+            int stride = in_buff.length * 2;
+            int len = in_offset + in_frames;
+            for (int c = 0; c < in_buff.length; c++) {
+                float[] in = in_buff[c];
+                int ox = out_offset + c * 2;
+                for (int ix = in_offset; ix < len; ix++) {
+                    int x = (int) (in[ix] * 32767.0);
+                    out_buff[ox] = (byte) (x >>> 8);
+                    out_buff[ox + 1] = (byte) x;
+                    ox += stride;
+                }
+            }
+            return out_buff;
+        }
     }
 
     // PCM 16 bit, unsigned, little-endian
@@ -930,6 +1013,86 @@ public abstract class TarsosDSPAudioFloatConverter {
         }
     }
 
+    /***************************************************************************
+     * 
+     * Shared converter registry. Converters keep no state between calls, the
+     * scratch space they need is kept per thread, so the registry keeps one
+     * converter per format for all threads. A lookup builds a key: look the
+     * converter up once and keep it, not once per block.
+     * 
+     **************************************************************************/
+
+    private static final class FormatKey {
+
+        final private Encoding encoding;
+
+        final private float sampleRate;
+
+        final private int sampleSizeInBits;
+
+        final private int channels;
+
+        final private int frameSize;
+
+        final private boolean bigEndian;
+
+        public FormatKey(TarsosDSPAudioFormat format) {
+            encoding = format.getEncoding();
+            sampleRate = format.getSampleRate();
+            sampleSizeInBits = format.getSampleSizeInBits();
+            channels = format.getChannels();
+            frameSize = format.getFrameSize();
+            bigEndian = format.isBigEndian();
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof FormatKey))
+                return false;
+            FormatKey other = (FormatKey) obj;
+            return encoding.equals(other.encoding)
+                    && Float.compare(sampleRate, other.sampleRate) == 0
+                    && sampleSizeInBits == other.sampleSizeInBits
+                    && channels == other.channels
+                    && frameSize == other.frameSize
+                    && bigEndian == other.bigEndian;
+        }
+
+        public int hashCode() {
+            int hash = encoding.hashCode();
+            hash = 31 * hash + Float.floatToIntBits(sampleRate);
+            hash = 31 * hash + sampleSizeInBits;
+            hash = 31 * hash + channels;
+            hash = 31 * hash + frameSize;
+            return 31 * hash + (bigEndian ? 1 : 0);
+        }
+    }
+
+    private static final ConcurrentMap<FormatKey, TarsosDSPAudioFloatConverter> sharedConverters = 
+            new ConcurrentHashMap<FormatKey, TarsosDSPAudioFloatConverter>();
+
+    /**
+     * Returns a converter for the format from a registry instead of building
+     * a new one. Formats with equal properties share one converter, which
+     * can be used from any thread.
+     * 
+     * @param format
+     *            The format to convert.
+     * @return A shared converter or null if the format is not supported.
+     */
+    public static TarsosDSPAudioFloatConverter getSharedConverter(TarsosDSPAudioFormat format) {
+        FormatKey key = new FormatKey(format);
+        TarsosDSPAudioFloatConverter conv = sharedConverters.get(key);
+        if (conv == null) {
+            conv = getConverter(format);
+            if (conv != null) {
+                TarsosDSPAudioFloatConverter previous = sharedConverters.putIfAbsent(key, conv);
+                if (previous != null)
+                    conv = previous;
+            }
+        }
+        return conv;
+    }
+
     public static TarsosDSPAudioFloatConverter getConverter(TarsosDSPAudioFormat format) {
         TarsosDSPAudioFloatConverter conv = null;
         if (format.getFrameSize() == 0)
@@ -1079,4 +1242,105 @@ public abstract class TarsosDSPAudioFloatConverter {
     public byte[] toByteArray(float[] in_buff, byte[] out_buff) {
         return toByteArray(in_buff, 0, in_buff.length, out_buff, 0);
     }
+
+    /***************************************************************************
+     * 
+     * Planar conversion: one float array per channel instead of one
+     * interleaved array. The converters above work on interleaved samples, the
+     * methods below deinterleave (or interleave) while converting so per
+     * channel processing can run over contiguous arrays.
+     * 
+     **************************************************************************/
+
+    /**
+     * Scratch space for the interleaved samples, one per thread: a converter
+     * keeps no state of its own, so one instance can serve several threads.
+     */
+    private static final ThreadLocal<float[][]> interleave_scratch =
+            new ThreadLocal<float[][]>() {
+        protected float[][] initialValue() {
+            return new float[1][0];
+        }
+    };
+
+    private static float[] interleaveBuffer(int len) {
+        float[][] holder = interleave_scratch.get();
+        if (holder[0].length < len)
+            holder[0] = new float[len];
+        return holder[0];
+    }
+
+    /**
+     * Converts interleaved frames to planar float data. Sample <code>c</code>
+     * of every frame ends up in <code>out_buff[c]</code>, so the number of
+     * channels is defined by <code>out_buff.length</code>.
+     * 
+     * @param in_buff
+     *            The interleaved audio data in bytes.
+     * @param in_offset
+     *            The offset in bytes where conversion starts.
+     * @param out_buff
+     *            One float array per channel.
+     * @param out_offset
+     *            The offset (in frames) in each channel array.
+     * @param out_frames
+     *            The number of frames to convert.
+     * @return The planar output buffer.
+     */
+    public float[][] toFloatArrays(byte[] in_buff, int in_offset,
+            float[][] out_buff, int out_offset, int out_frames) {
+        int channels = out_buff.length;
+        if (channels == 1) {
+            toFloatArray(in_buff, in_offset, out_buff[0], out_offset, out_frames);
+            return out_buff;
+        }
+        int in_len = out_frames * channels;
+        float[] interleave_buff = interleaveBuffer(in_len);
+        toFloatArray(in_buff, in_offset, interleave_buff, 0, in_len);
+        int len = out_offset + out_frames;
+        for (int c = 0; c < channels; c++) {
+            float[] out = out_buff[c];
+            int ix = c;
+            for (int ox = out_offset; ox < len; ox++) {
+                out[ox] = interleave_buff[ix];
+                ix += channels;
+            }
+        }
+        return out_buff;
+    }
+
+    /**
+     * Converts planar float data to interleaved frames, the inverse of
+     * {@link #toFloatArrays(byte[], int, float[][], int, int)}.
+     * 
+     * @param in_buff
+     *            One float array per channel.
+     * @param in_offset
+     *            The offset (in frames) in each channel array.
+     * @param in_frames
+     *            The number of frames to convert.
+     * @param out_buff
+     *            The interleaved output buffer.
+     * @param out_offset
+     *            The offset in bytes where the first frame is written.
+     * @return The output buffer.
+     */
+    public byte[] toByteArray(float[][] in_buff, int in_offset, int in_frames,
+            byte[] out_buff, int out_offset) {
+        int channels = in_buff.length;
+        if (channels == 1)
+            return toByteArray(in_buff[0], in_offset, in_frames, out_buff, out_offset);
+        int out_len = in_frames * channels;
+        float[] interleave_buff = interleaveBuffer(out_len);
+        int len = in_offset + in_frames;
+        for (int c = 0; c < channels; c++) {
+            float[] in = in_buff[c];
+            int ox = c;
+            for (int ix = in_offset; ix < len; ix++) {
+                interleave_buff[ox] = in[ix];
+                ox += channels;
+            }
+        }
+        return toByteArray(interleave_buff, 0, out_len, out_buff, out_offset);
+    }
 }
@@ -101,122 +101,12 @@ public class WaveformChartPanel extends ChartPanel {
 
 					try {
 						AudioEvent audioEvent = mLinkedBlockingQueue.take();
-						/**
-						 * 不分析第一块音频数据
-						 */
-						if (isIgnoreFirstBlock) {
-							isIgnoreFirstBlock = false;
-							continue;
+						try {
+							showAudioEvent(audioEvent);
+						} finally {
+							//事件来自池，用完后归还
+							audioEvent.release();
 						}
-						if (curShowSoundBlockSize >= showSoundBlockSizeSum)
-							continue;
-						curShowSoundBlockSize++;
-						DataForAnalysisInWaveformChart mDataForAnalysisInWaveformChart = audioEvent
-								.getDataForAnalysisInWaveformChart();
-						if (what_analysisFrameWaveformChart.equals(what)) {
-							float[] audioFloatBuffer = mDataForAnalysisInWaveformChart.getFloatBufferOriginal();
-							int duplicateLengthInAnalysisFrame = mDataForAnalysisInWaveformChart.getDuplicateLengthInAnalysisFrame();
-							//重复数据
-							XYSeries mXYSeries_duplicate = new XYSeries("重复数据" + curShowSoundBlockSize);
-							for (int i = 0; i < duplicateLengthInAnalysisFrame; i++) {
-								mXYSeries_duplicate.add(indexX, audioFloatBuffer[i]);
-								indexX++;
-							}
-							mXYSeriesCollection.addSeries(mXYSeries_duplicate);
-							((XYPlot) (getChart().getPlot())).getRenderer().setSeriesPaint(
-									mXYSeriesCollection.getSeriesCount() - 1, new Color(0xFF,0xE4,0xE1));
-							//有效帧
-							XYSeries mXYSeries_effectiveFrame = new XYSeries("有效帧" + curShowSoundBlockSize);
-							for (int i = duplicateLengthInAnalysisFrame; i <  audioFloatBuffer.length; i++) {
-								mXYSeries_effectiveFrame.add(indexX, audioFloatBuffer[i]);
-								indexX++;
-							}
-							mXYSeriesCollection.addSeries(mXYSeries_effectiveFrame);
-							((XYPlot) (getChart().getPlot())).getRenderer().setSeriesPaint(
-									mXYSeriesCollection.getSeriesCount() - 1, new Color(0xBF,0x3E,0xFF));
-						
-						}if (what_inputWaveformChart.equals(what)) {
-							float[] audioFloatBuffer = mDataForAnalysisInWaveformChart.getFloatBufferOriginal();
-							int seekWinOffsetWsola = mDataForAnalysisInWaveformChart.getSeekWinOffsetWsola();
-							int overlapWsola = mDataForAnalysisInWaveformChart.getOverlapWsola();
-							int dataNotOverlapWsola = mDataForAnalysisInWaveformChart.getDataNotOverlapWsola();
-							
-							//搜索窗移动距离
-							XYSeries mXYseek_seekWindowMovOffset = new XYSeries("搜索窗实际移动的距离" + curShowSoundBlockSize);
-							for (int i = 0; i < seekWinOffsetWsola; i++) {
-								mXYseek_seekWindowMovOffset.add(indexX, audioFloatBuffer[i]);
-								indexX++;
-							}
-							mXYSeriesCollection.addSeries(mXYseek_seekWindowMovOffset);
-							((XYPlot) (getChart().getPlot())).getRenderer().setSeriesPaint(
-									mXYSeriesCollection.getSeriesCount() - 1, new Color(0x98, 0xfb, 0x98));
-							//重叠区域
-							XYSeries mXYOverlapWsola1 = new XYSeries("头部重叠区域" + curShowSoundBlockSize);
-							for (int i = seekWinOffsetWsola; i < seekWinOffsetWsola+overlapWsola; i++) {
-								mXYOverlapWsola1.add(indexX, audioFloatBuffer[i]);
-								indexX++;
-							}
-							mXYSeriesCollection.addSeries(mXYOverlapWsola1);
-							((XYPlot) (getChart().getPlot())).getRenderer().setSeriesPaint(
-									mXYSeriesCollection.getSeriesCount() - 1, new Color(0xf6, 0xde, 0x13));
-							
-							//合成帧
-							XYSeries mXYDataNotOverlapWsola = new XYSeries("非重叠区域" + curShowSoundBlockSize);
-							for (int i = overlapWsola + seekWinOffsetWsola; i <  overlapWsola + seekWinOffsetWsola+dataNotOverlapWsola; i++) {
-								mXYDataNotOverlapWsola.add(indexX, audioFloatBuffer[i]);
-								indexX++;
-							}
-							mXYSeriesCollection.addSeries(mXYDataNotOverlapWsola);
-							//重叠区域
-							XYSeries mXYOverlapWsola = new XYSeries("尾部重叠区域" + curShowSoundBlockSize);
-							for (int i = overlapWsola + seekWinOffsetWsola+dataNotOverlapWsola; i < overlapWsola + seekWinOffsetWsola+dataNotOverlapWsola+overlapWsola; i++) {
-								mXYOverlapWsola.add(indexX, audioFloatBuffer[i]);
-								indexX++;
-							}
-							mXYSeriesCollection.addSeries(mXYOverlapWsola);
-							((XYPlot) (getChart().getPlot())).getRenderer().setSeriesPaint(
-									mXYSeriesCollection.getSeriesCount() - 1, new Color(0xf6, 0xde, 0x13));
-							
-							//none
-							XYSeries mXYNone = new XYSeries("丢弃的数据" + curShowSoundBlockSize);
-							for (int i = overlapWsola + seekWinOffsetWsola+dataNotOverlapWsola+overlapWsola; i < audioFloatBuffer.length; i++) {
-								mXYNone.add(indexX, audioFloatBuffer[i]);
-								indexX++;
-							}
-							mXYSeriesCollection.addSeries(mXYNone);
-							((XYPlot) (getChart().getPlot())).getRenderer().setSeriesPaint(
-									mXYSeriesCollection.getSeriesCount() - 1, new Color(0xff, 0xff, 0xff));
-							//valideData表示音频实际的数据长度，allData中包括了重叠区域
-							System.out.println(what+"_valideData:" + (indexX-mDataForAnalysisInWaveformChart.getDuplicateLengthInAnalysisFrame()));
-						} else if (what_outputWaveformChartWsola.equals(what)) {
-							float[] audioFloatBuffer = mDataForAnalysisInWaveformChart.getFloatBufferWsola();
-							int overlapWsola = mDataForAnalysisInWaveformChart.getOverlapWsola();
-							//overlapWsola
-							XYSeries mXYOverlapWsola = new XYSeries("重叠区域" + curShowSoundBlockSize);
-							for (int i = 0; i < overlapWsola; i++) {
-								mXYOverlapWsola.add(indexX, audioFloatBuffer[i]);
-								indexX++;
-							}
-							mXYSeriesCollection.addSeries(mXYOverlapWsola);
-							((XYPlot) (getChart().getPlot())).getRenderer().setSeriesPaint(
-									mXYSeriesCollection.getSeriesCount() - 1, new Color(0xf6, 0xde, 0x13));
-							//dataNotOverlapWsola
-							XYSeries mXYDataNotOverlapWsola = new XYSeries("非重叠区域" + curShowSoundBlockSize);
-							for (int i = overlapWsola; i < audioFloatBuffer.length; i++) {
-								mXYDataNotOverlapWsola.add(indexX, audioFloatBuffer[i]);
-								indexX++;
-							}
-							mXYSeriesCollection.addSeries(mXYDataNotOverlapWsola);
-						} else if(what_outputWaveformChartRt.equals(what)) {
-							float[] audioFloatBuffer = mDataForAnalysisInWaveformChart.getFloatBufferCur();
-							XYSeries mXYDataNotOverlapWsola = new XYSeries("soundData" + curShowSoundBlockSize);
-							for (int i = 0; i < audioFloatBuffer.length; i++) {
-								mXYDataNotOverlapWsola.add(indexX, audioFloatBuffer[i]);
-								indexX++;
-							}
-							mXYSeriesCollection.addSeries(mXYDataNotOverlapWsola);
-						}
-						System.out.println(what+"_allDataLength:" + indexX);
 					} catch (InterruptedException e) {
 						e.printStackTrace();
 					}
@@ -225,6 +115,132 @@ public class WaveformChartPanel extends ChartPanel {
 		}).start();
 	}
 
+	/**
+	 * 把一块音频数据加到波形图中
+	 */
+	private void showAudioEvent(AudioEvent audioEvent) {
+		/**
+		 * 不分析第一块音频数据
+		 */
+		if (isIgnoreFirstBlock) {
+			isIgnoreFirstBlock = false;
+			return;
+		}
+		if (curShowSoundBlockSize >= showSoundBlockSizeSum)
+			return;
+		curShowSoundBlockSize++;
+		DataForAnalysisInWaveformChart mDataForAnalysisInWaveformChart = audioEvent
+				.getDataForAnalysisInWaveformChart();
+		if (mDataForAnalysisInWaveformChart == null && !what_outputWaveformChartRt.equals(what))
+			return;
+		if (what_analysisFrameWaveformChart.equals(what)) {
+			float[] audioFloatBuffer = mDataForAnalysisInWaveformChart.getFloatBufferOriginal();
+			int duplicateLengthInAnalysisFrame = mDataForAnalysisInWaveformChart.getDuplicateLengthInAnalysisFrame();
+			//重复数据
+			XYSeries mXYSeries_duplicate = new XYSeries("重复数据" + curShowSoundBlockSize);
+			for (int i = 0; i < duplicateLengthInAnalysisFrame; i++) {
+				mXYSeries_duplicate.add(indexX, audioFloatBuffer[i]);
+				indexX++;
+			}
+			mXYSeriesCollection.addSeries(mXYSeries_duplicate);
+			((XYPlot) (getChart().getPlot())).getRenderer().setSeriesPaint(
+					mXYSeriesCollection.getSeriesCount() - 1, new Color(0xFF,0xE4,0xE1));
+			//有效帧
+			XYSeries mXYSeries_effectiveFrame = new XYSeries("有效帧" + curShowSoundBlockSize);
+			for (int i = duplicateLengthInAnalysisFrame; i <  audioFloatBuffer.length; i++) {
+				mXYSeries_effectiveFrame.add(indexX, audioFloatBuffer[i]);
+				indexX++;
+			}
+			mXYSeriesCollection.addSeries(mXYSeries_effectiveFrame);
+			((XYPlot) (getChart().getPlot())).getRenderer().setSeriesPaint(
+					mXYSeriesCollection.getSeriesCount() - 1, new Color(0xBF,0x3E,0xFF));
+		
+		}if (what_inputWaveformChart.equals(what)) {
+			float[] audioFloatBuffer = mDataForAnalysisInWaveformChart.getFloatBufferOriginal();
+			int seekWinOffsetWsola = mDataForAnalysisInWaveformChart.getSeekWinOffsetWsola();
+			int overlapWsola = mDataForAnalysisInWaveformChart.getOverlapWsola();
+			int dataNotOverlapWsola = mDataForAnalysisInWaveformChart.getDataNotOverlapWsola();
+			
+			//搜索窗移动距离
+			XYSeries mXYseek_seekWindowMovOffset = new XYSeries("搜索窗实际移动的距离" + curShowSoundBlockSize);
+			for (int i = 0; i < seekWinOffsetWsola; i++) {
+				mXYseek_seekWindowMovOffset.add(indexX, audioFloatBuffer[i]);
+				indexX++;
+			}
+			mXYSeriesCollection.addSeries(mXYseek_seekWindowMovOffset);
+			((XYPlot) (getChart().getPlot())).getRenderer().setSeriesPaint(
+					mXYSeriesCollection.getSeriesCount() - 1, new Color(0x98, 0xfb, 0x98));
+			//重叠区域
+			XYSeries mXYOverlapWsola1 = new XYSeries("头部重叠区域" + curShowSoundBlockSize);
+			for (int i = seekWinOffsetWsola; i < seekWinOffsetWsola+overlapWsola; i++) {
+				mXYOverlapWsola1.add(indexX, audioFloatBuffer[i]);
+				indexX++;
+			}
+			mXYSeriesCollection.addSeries(mXYOverlapWsola1);
+			((XYPlot) (getChart().getPlot())).getRenderer().setSeriesPaint(
+					mXYSeriesCollection.getSeriesCount() - 1, new Color(0xf6, 0xde, 0x13));
+			
+			//合成帧
+			XYSeries mXYDataNotOverlapWsola = new XYSeries("非重叠区域" + curShowSoundBlockSize);
+			for (int i = overlapWsola + seekWinOffsetWsola; i <  overlapWsola + seekWinOffsetWsola+dataNotOverlapWsola; i++) {
+				mXYDataNotOverlapWsola.add(indexX, audioFloatBuffer[i]);
+				indexX++;
+			}
+			mXYSeriesCollection.addSeries(mXYDataNotOverlapWsola);
+			//重叠区域
+			XYSeries mXYOverlapWsola = new XYSeries("尾部重叠区域" + curShowSoundBlockSize);
+			for (int i = overlapWsola + seekWinOffsetWsola+dataNotOverlapWsola; i < overlapWsola + seekWinOffsetWsola+dataNotOverlapWsola+overlapWsola; i++) {
+				mXYOverlapWsola.add(indexX, audioFloatBuffer[i]);
+				indexX++;
+			}
+			mXYSeriesCollection.addSeries(mXYOverlapWsola);
+			((XYPlot) (getChart().getPlot())).getRenderer().setSeriesPaint(
+					mXYSeriesCollection.getSeriesCount() - 1, new Color(0xf6, 0xde, 0x13));
+			
+			//none
+			XYSeries mXYNone = new XYSeries("丢弃的数据" + curShowSoundBlockSize);
+			for (int i = overlapWsola + seekWinOffsetWsola+dataNotOverlapWsola+overlapWsola; i < audioFloatBuffer.length; i++) {
+				mXYNone.add(indexX, audioFloatBuffer[i]);
+				indexX++;
+			}
+			mXYSeriesCollection.addSeries(mXYNone);
+			((XYPlot) (getChart().getPlot())).getRenderer().setSeriesPaint(
+					mXYSeriesCollection.getSeriesCount() - 1, new Color(0xff, 0xff, 0xff));
+			//valideData表示音频实际的数据长度，allData中包括了重叠区域
+			System.out.println(what+"_valideData:" + (indexX-mDataForAnalysisInWaveformChart.getDuplicateLengthInAnalysisFrame()));
+		} else if (what_outputWaveformChartWsola.equals(what)) {
+			float[] audioFloatBuffer = mDataForAnalysisInWaveformChart.getFloatBufferWsola();
+			int overlapWsola = mDataForAnalysisInWaveformChart.getOverlapWsola();
+			//overlapWsola
+			XYSeries mXYOverlapWsola = new XYSeries("重叠区域" + curShowSoundBlockSize);
+			for (int i = 0; i < overlapWsola; i++) {
+				mXYOverlapWsola.add(indexX, audioFloatBuffer[i]);
+				indexX++;
+			}
+			mXYSeriesCollection.addSeries(mXYOverlapWsola);
+			((XYPlot) (getChart().getPlot())).getRenderer().setSeriesPaint(
+					mXYSeriesCollection.getSeriesCount() - 1, new Color(0xf6, 0xde, 0x13));
+			//dataNotOverlapWsola
+			XYSeries mXYDataNotOverlapWsola = new XYSeries("非重叠区域" + curShowSoundBlockSize);
+			for (int i = overlapWsola; i < audioFloatBuffer.length; i++) {
+				mXYDataNotOverlapWsola.add(indexX, audioFloatBuffer[i]);
+				indexX++;
+			}
+			mXYSeriesCollection.addSeries(mXYDataNotOverlapWsola);
+		} else if(what_outputWaveformChartRt.equals(what)) {
+			//直接读取事件自己的数据，事件在显示完之前不会归还给池
+			float[] audioFloatBuffer = audioEvent.getFloatBufferArray();
+			int offset = audioEvent.getBufferOffset();
+			XYSeries mXYDataNotOverlapWsola = new XYSeries("soundData" + curShowSoundBlockSize);
+			for (int i = offset; i < offset + audioEvent.getBufferSize(); i++) {
+				mXYDataNotOverlapWsola.add(indexX, audioFloatBuffer[i]);
+				indexX++;
+			}
+			mXYSeriesCollection.addSeries(mXYDataNotOverlapWsola);
+		}
+		System.out.println(what+"_allDataLength:" + indexX);
+	}
+
 	public static WaveformChartPanel getInstant(String what,String title) {
 		return new WaveformChartPanel(what,title);
 	}
@@ -0,0 +1,74 @@
+package priv.droptea.emotion.processor;
+
+/**
+ * Chooses the target fill of the jitter buffer of an {@link AudioPlayer}. An
+ * underrun increases the fill by half, or at least one step; each period
+ * without underrun that is as long as the allowed mean time between
+ * underruns decreases it by one step. The fill settles at the lowest level
+ * where underruns are rarer than the target rate.
+ * 根据欠载次数自动调整抖动缓冲的目标填充量：欠载时快速增加，长时间无欠载时逐步减少
+ */
+final class AdaptiveBufferController {
+
+	private final int minimumFill, maximumFill, step;
+
+	/**
+	 * The time without underrun after which the fill is decreased.
+	 */
+	private final long quietNanos;
+
+	private int fill;
+
+	private long lastChange;
+
+	/**
+	 * @param maxUnderrunsPerMinute
+	 *            The underrun rate to stay below.
+	 * @param minimumFill
+	 *            The smallest target fill, in samples.
+	 * @param maximumFill
+	 *            The largest target fill, in samples.
+	 * @param now
+	 *            The current time, see {@link System#nanoTime()}.
+	 */
+	AdaptiveBufferController(double maxUnderrunsPerMinute, int minimumFill, int maximumFill, long now) {
+		if (maxUnderrunsPerMinute <= 0 || minimumFill < 0 || maximumFill < minimumFill) {
+			throw new IllegalArgumentException("Invalid adaptive buffer settings");
+		}
+		this.minimumFill = minimumFill;
+		this.maximumFill = maximumFill;
+		this.step = Math.max(1, (maximumFill - minimumFill) / 16);
+		this.quietNanos = (long) (60e9 / maxUnderrunsPerMinute);
+		fill = minimumFill;
+		lastChange = now;
+	}
+
+	/**
+	 * Called when the output is about to run dry.
+	 *
+	 * @return The new target fill.
+	 */
+	int underrun(long now) {
+		fill = Math.min(maximumFill, Math.max(fill + step, fill + fill / 2));
+		lastChange = now;
+		return fill;
+	}
+
+	/**
+	 * Called regularly while playing.
+	 *
+	 * @return The new target fill, lower than before if there was no underrun
+	 *         for long enough.
+	 */
+	int update(long now) {
+		if (fill > minimumFill && now - lastChange >= quietNanos) {
+			fill = Math.max(minimumFill, fill - step);
+			lastChange = now;
+		}
+		return fill;
+	}
+
+	int getFill() {
+		return fill;
+	}
+}
@@ -24,6 +24,8 @@
 
 package priv.droptea.emotion.processor;
 
+import java.util.concurrent.locks.LockSupport;
+
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.DataLine;
@@ -32,7 +34,9 @@ import javax.sound.sampled.SourceDataLine;
 
 import priv.droptea.emotion.AudioEvent;
 import priv.droptea.emotion.io.JVMAudioInputStream;
+import priv.droptea.emotion.io.TarsosDSPAudioFloatConverter;
 import priv.droptea.emotion.io.TarsosDSPAudioFormat;
+import priv.droptea.emotion.util.FloatRingBuffer;
 
 /**
  * This AudioProcessor can be used to sync events with sound. It uses a pattern
@@ -48,6 +52,27 @@ import priv.droptea.emotion.io.TarsosDSPAudioFormat;
  */
 public final class AudioPlayer implements AudioProcessor {
 	
+	/**
+	 * What the writer thread does when the line is about to run dry and no
+	 * samples are waiting.
+	 * 输出缓冲即将耗尽且没有新数据时的处理方式
+	 */
+	public enum UnderrunPolicy {
+		/**
+		 * Wait for samples, the device plays its own silence meanwhile.
+		 */
+		WAIT,
+		/**
+		 * Write silence, the position of the line keeps running.
+		 */
+		SILENCE,
+		/**
+		 * Write the last chunk again, less audible than silence for short
+		 * gaps in speech or music.
+		 */
+		REPEAT
+	}
+	
 
 	/**
 	 * The LineWavelet to send sound to. Is also used to keep everything in sync.
@@ -56,6 +81,46 @@ public final class AudioPlayer implements AudioProcessor {
 
 	
 	private final AudioFormat format;
+	
+	/**
+	 * When a writer thread is used, the processing chain only puts samples in
+	 * this ring buffer and the writer thread does the blocking write to the
+	 * line. Null when writing directly from the processing thread.
+	 */
+	private FloatRingBuffer outputRing;
+	
+	private Thread writerThread;
+	
+	/**
+	 * Used to interleave planar events before they go into the ring buffer.
+	 */
+	private float[] interleaveBuffer;
+	
+	private volatile long droppedSamples;
+	
+	/**
+	 * The number of samples the writer thread waits for before it starts
+	 * writing, at the start and after an underrun.
+	 */
+	private volatile int targetFill;
+	
+	private volatile UnderrunPolicy underrunPolicy = UnderrunPolicy.WAIT;
+	
+	private volatile long underruns;
+	
+	private volatile long concealedSamples;
+	
+	/**
+	 * Adapts the target fill to the underruns, null for a fixed target fill.
+	 */
+	private volatile AdaptiveBufferController adaptive;
+	
+	private volatile long trimmedSamples;
+	
+	/**
+	 * Length of the cross-fade over a cut of the adaptive trim, in seconds.
+	 */
+	private static final double TRIM_FADE_SECONDS = 0.003;
 
 	/**
 	 * Creates a new audio player.
@@ -93,8 +158,232 @@ public final class AudioPlayer implements AudioProcessor {
 		return line.getMicrosecondPosition();
 	}
 	
+	/**
+	 * Moves the blocking write to the line to a dedicated writer thread. After
+	 * this call <code>process</code> only copies the samples to a lock free
+	 * ring buffer and never blocks, so a hiccup of the output device does not
+	 * stall the processing chain. If the writer thread falls behind more than
+	 * the latency budget, the newest samples are dropped and counted.
+	 * 
+	 * @param latencyBudget
+	 *            The maximum number of samples waiting to be written.
+	 */
+	public void startWriterThread(int latencyBudget){
+		outputRing = new FloatRingBuffer(latencyBudget);
+		writerThread = new Thread(new Runnable(){
+			@Override
+			public void run() {
+				writeFromRing();
+			}
+		},"Audio player writer");
+		writerThread.setDaemon(true);
+		writerThread.setPriority(Thread.MAX_PRIORITY);
+		writerThread.start();
+	}
+	
+	/**
+	 * Makes the writer thread work as a jitter buffer: it collects the target
+	 * fill before it starts writing, and again after an underrun, so uneven
+	 * processing times are absorbed at the cost of that much latency. When the
+	 * line is about to run dry the policy decides what is written. Can be
+	 * changed while playing.
+	 * 
+	 * @param targetFill
+	 *            The number of samples collected before writing, 0 to write
+	 *            as soon as samples arrive.
+	 * @param policy
+	 *            What to write on an underrun.
+	 */
+	public void setJitterBuffer(int targetFill, UnderrunPolicy policy){
+		this.adaptive = null;
+		this.targetFill = Math.max(0, targetFill);
+		this.underrunPolicy = policy;
+	}
+	
+	/**
+	 * Lets the writer thread choose the target fill of the jitter buffer
+	 * itself: it grows after an underrun and shrinks after a quiet period,
+	 * keeping the underrun rate below the target with the lowest latency that
+	 * achieves it. When the output latency, waiting samples and those queued
+	 * in the line, stays more than a line buffer above the target fill, e.g.
+	 * after the target went down, a few samples are dropped per chunk written
+	 * until it is back, see {@link #getTrimmedSamples()}. Replaces a fixed
+	 * target fill.
+	 * 
+	 * @param maxUnderrunsPerMinute
+	 *            The underrun rate to stay below, e.g. 1.
+	 * @param minimumFill
+	 *            The smallest target fill, in samples.
+	 * @param maximumFill
+	 *            The largest target fill, in samples, below the latency
+	 *            budget of the writer thread.
+	 * @param policy
+	 *            What to write on an underrun.
+	 */
+	public void setAdaptiveJitterBuffer(double maxUnderrunsPerMinute, int minimumFill, int maximumFill, UnderrunPolicy policy){
+		this.adaptive = new AdaptiveBufferController(maxUnderrunsPerMinute, minimumFill, maximumFill, System.nanoTime());
+		this.targetFill = minimumFill;
+		this.underrunPolicy = policy;
+	}
+	
+	/**
+	 * Body of the writer thread: moves samples from the ring buffer to the
+	 * line until the ring buffer is closed and empty.
+	 */
+	private void writeFromRing(){
+		TarsosDSPAudioFloatConverter converter = TarsosDSPAudioFloatConverter.getSharedConverter(JVMAudioInputStream.toTarsosDSPFormat(format));
+		int bytesPerSample = format.getFrameSize() / format.getChannels();
+		// write in chunks of about a quarter of the line buffer
+		int chunkSize = Math.max(format.getChannels(), line.getBufferSize() / 4 / format.getFrameSize() * format.getChannels());
+		float[] floatChunk = new float[chunkSize];
+		byte[] byteChunk = new byte[chunkSize * bytesPerSample];
+		byte[] silence = converter.toByteArray(new float[chunkSize], new byte[byteChunk.length]);
+		int headroom = line.getBufferSize() / bytesPerSample;
+		int channels = format.getChannels();
+		int maxTrim = Math.max(channels, chunkSize / 16);
+		// a cut is faded over a few milliseconds, never longer than the largest trim
+		int fadeFrames = Math.max(1, Math.min((int) (format.getSampleRate() * TRIM_FADE_SECONDS), maxTrim / channels));
+		float[] fadeChunk = new float[fadeFrames * channels];
+		int lastChunkBytes = 0;
+		boolean priming = true;
+		boolean underrun = false;
+		while(true){
+			// closed is read first: what was written before the close is then counted in queued
+			boolean closed = outputRing.isClosed();
+			int queued = outputRing.available();
+			boolean ready = priming ? queued >= Math.max(1, targetFill) || (closed && queued > 0) : queued > 0;
+			if(ready){
+				priming = false;
+				underrun = false;
+				int samples = outputRing.read(floatChunk, 0, chunkSize);
+				AdaptiveBufferController controller = adaptive;
+				if(controller != null){
+					targetFill = controller.update(System.nanoTime());
+					// after the target went down the latency stays at the old target until the next start;
+					// a line buffer is left for uneven input, above it a little is dropped per chunk
+					int lineQueued = (line.getBufferSize() - line.available()) / bytesPerSample;
+					int excess = outputRing.available() + samples + lineQueued - targetFill - headroom;
+					int trim = Math.min(excess, maxTrim);
+					trim -= trim % channels;
+					if(trim >= fadeChunk.length && samples >= fadeChunk.length && outputRing.available() >= trim){
+						// the end of the chunk fades into the samples after the dropped ones, a hard cut would click
+						outputRing.skip(trim - fadeChunk.length);
+						outputRing.read(fadeChunk, 0, fadeChunk.length);
+						crossFade(floatChunk, samples - fadeChunk.length, fadeChunk, channels);
+						trimmedSamples += trim;
+					}
+				}
+				converter.toByteArray(floatChunk, 0, samples, byteChunk, 0);
+				lastChunkBytes = samples * bytesPerSample;
+				line.write(byteChunk, 0, lastChunkBytes);
+				continue;
+			}
+			if(closed && queued == 0){
+				break;
+			}
+			if(lastChunkBytes > 0 && line.getBufferSize() - line.available() < byteChunk.length){
+				// the line is about to run dry
+				if(!underrun){
+					underrun = true;
+					underruns++;
+					AdaptiveBufferController controller = adaptive;
+					if(controller != null){
+						targetFill = controller.underrun(System.nanoTime());
+					}
+					priming = targetFill > 0;
+				}
+				UnderrunPolicy policy = underrunPolicy;
+				if(policy != UnderrunPolicy.WAIT){
+					int bytes = policy == UnderrunPolicy.REPEAT ? lastChunkBytes : silence.length;
+					line.write(policy == UnderrunPolicy.REPEAT ? byteChunk : silence, 0, bytes);
+					concealedSamples += bytes / bytesPerSample;
+					continue;
+				}
+			}
+			LockSupport.parkNanos(500000);
+		}
+	}
+	
+	/**
+	 * Fades the interleaved samples from <code>offset</code> on out and the
+	 * samples of <code>next</code> in, and stores the sum in place.
+	 */
+	private static void crossFade(float[] chunk, int offset, float[] next, int channels){
+		int frames = next.length / channels;
+		for(int frame = 0 ; frame < frames ; frame++){
+			float in = (frame + 1) / (float) (frames + 1);
+			for(int c = 0 ; c < channels ; c++){
+				int i = frame * channels + c;
+				chunk[offset + i] = chunk[offset + i] * (1 - in) + next[i] * in;
+			}
+		}
+	}
+	
+	/**
+	 * @return The number of times the line was about to run dry because no
+	 *         samples were waiting.
+	 */
+	public long getUnderruns(){
+		return underruns;
+	}
+	
+	/**
+	 * @return The number of samples of silence or repeated audio written on
+	 *         underruns.
+	 */
+	public long getConcealedSamples(){
+		return concealedSamples;
+	}
+	
+	/**
+	 * @return The number of samples waiting for the writer thread, 0 without
+	 *         writer thread.
+	 */
+	public int getQueuedSamples(){
+		return outputRing == null ? 0 : outputRing.available();
+	}
+	
+	/**
+	 * @return The current target fill of the jitter buffer in samples, chosen
+	 *         by the adaptive controller if there is one.
+	 */
+	public int getTargetFill(){
+		return targetFill;
+	}
+	
+	/**
+	 * @return The number of samples the adaptive controller dropped because
+	 *         the output latency was more than a line buffer above the target
+	 *         fill. Every cut is cross-faded over a few milliseconds.
+	 */
+	public long getTrimmedSamples(){
+		return trimmedSamples;
+	}
+	
+	/**
+	 * @return The output latency in milliseconds: the samples waiting for
+	 *         the writer thread plus those queued in the line.
+	 */
+	public double getLatencyMillis(){
+		int lineQueued = (line.getBufferSize() - line.available()) / format.getFrameSize();
+		int ringQueued = getQueuedSamples() / format.getChannels();
+		return (lineQueued + ringQueued) * 1000.0 / format.getSampleRate();
+	}
+	
+	/**
+	 * @return The number of samples dropped because the writer thread fell
+	 *         behind more than the latency budget, or because they arrived
+	 *         after playback was stopped.
+	 */
+	public long getDroppedSamples(){
+		return droppedSamples;
+	}
+	
 	@Override
 	public boolean process(AudioEvent audioEvent) {
+		if(outputRing != null){
+			return processAsynchronous(audioEvent);
+		}
 		int byteOverlap = audioEvent.getOverlap() * format.getFrameSize();
 		int byteStepSize = audioEvent.getBufferSize() * format.getFrameSize() - byteOverlap;
 		if(audioEvent.getTimeStamp() == 0){
@@ -117,6 +406,41 @@ public final class AudioPlayer implements AudioProcessor {
 		return true;
 	}
 	
+	private boolean processAsynchronous(AudioEvent audioEvent) {
+		int overlap = audioEvent.getOverlap();
+		if(audioEvent.getTimeStamp() == 0){
+			overlap = 0;
+		}
+		float[] samples = audioEvent.getFloatBufferArray();
+		int offset = audioEvent.getBufferOffset() + overlap;
+		int length = audioEvent.getBufferSize() - overlap;
+		if(audioEvent.isPlanar() && audioEvent.getChannelCount() > 1){
+			float[][] channels = audioEvent.getChannelBufferArrays();
+			if(interleaveBuffer == null || interleaveBuffer.length < length * channels.length){
+				interleaveBuffer = new float[length * channels.length];
+			}
+			int i = 0;
+			for(int frame = offset ; frame < offset + length ; frame++){
+				for(int c = 0 ; c < channels.length ; c++){
+					interleaveBuffer[i++] = channels[c][frame];
+				}
+			}
+			samples = interleaveBuffer;
+			offset = 0;
+			length = i;
+		}
+		if(outputRing.isClosed()){
+			// stopped from another thread, the writer thread is leaving
+			droppedSamples += length;
+			return true;
+		}
+		int written = outputRing.write(samples, offset, length);
+		if(written != length){
+			droppedSamples += length - written;
+		}
+		return true;
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -124,6 +448,16 @@ public final class AudioPlayer implements AudioProcessor {
 	 * processingFinished()
 	 */
 	public void processingFinished() {
+		if(outputRing != null){
+			// let the writer thread empty the ring buffer first; this can run on the thread
+			// that stops the dispatcher while process() still writes, see FloatRingBuffer#close()
+			outputRing.close();
+			try {
+				writerThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
 		// cleanup
 		line.drain();//drain takes too long..
 		line.stop();
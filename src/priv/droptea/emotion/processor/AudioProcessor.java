@@ -53,6 +53,49 @@ public interface AudioProcessor {
 	 */
     boolean process(AudioEvent audioEvent);
 
+	/**
+	 * Process several consecutive audio events in one call, in order. The
+	 * dispatcher uses this when it processes blocks in batches (see
+	 * <code>AudioDispatcher.setBatchSize</code>), so processors can run their
+	 * kernel over all blocks of the batch without a call per block. Every
+	 * event has its own audio data.
+	 * <p>
+	 * The default implementation calls {@link #process(AudioEvent)} for every
+	 * event that still proceeds. A processor that puts an array it reuses into
+	 * the event has the samples copied out of that array, because the next
+	 * event of the batch is processed before the rest of the chain sees the
+	 * previous one. Processors that do not reuse output arrays can override
+	 * this to avoid the copy.
+	 * </p>
+	 * 
+	 * @param audioEvents
+	 *            The events, oldest first.
+	 * @param proceed
+	 *            Per event true if the chain still runs for it. Set an entry
+	 *            to false to stop the chain for that event, like returning
+	 *            false from {@link #process(AudioEvent)}.
+	 * @param count
+	 *            The number of events in the arrays.
+	 * @return False if the chain stopped for every event.
+	 */
+	default boolean processBatch(AudioEvent[] audioEvents, boolean[] proceed, int count) {
+		boolean anyProceeds = false;
+		for (int i = 0; i < count; i++) {
+			if (!proceed[i]) {
+				continue;
+			}
+			AudioEvent audioEvent = audioEvents[i];
+			float[] floatBuffer = audioEvent.getFloatBufferArray();
+			float[][] channelBuffers = audioEvent.getChannelBufferArrays();
+			proceed[i] = process(audioEvent);
+			if (count > 1 && (audioEvent.getFloatBufferArray() != floatBuffer || audioEvent.getChannelBufferArrays() != channelBuffers)) {
+				audioEvent.detach();
+			}
+			anyProceeds |= proceed[i];
+		}
+		return anyProceeds;
+	}
+
     /**
      * Notify the AudioProcessor that no more data is available and processing
      * has finished. Can be used to deallocate resources or cleanup.
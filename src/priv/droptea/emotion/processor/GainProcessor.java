@@ -48,8 +48,32 @@ public class GainProcessor implements AudioProcessor {
 
 	@Override
 	public boolean process(AudioEvent audioEvent) {
-		float[] audioFloatBuffer = audioEvent.getFloatBuffer();
-		for (int i = audioEvent.getOverlap(); i < audioFloatBuffer.length ; i++) {
+		applyGain(audioEvent, gain);
+		return true;
+	}
+	
+	/**
+	 * Applies one gain to all blocks of the batch in one pass, without a call
+	 * per block through the chain. The samples are changed in place, no
+	 * output array is reused.
+	 */
+	@Override
+	public boolean processBatch(AudioEvent[] audioEvents, boolean[] proceed, int count) {
+		double batchGain = gain;
+		boolean anyProceeds = false;
+		for (int i = 0; i < count; i++) {
+			if (proceed[i]) {
+				applyGain(audioEvents[i], batchGain);
+				anyProceeds = true;
+			}
+		}
+		return anyProceeds;
+	}
+	
+	private static void applyGain(AudioEvent audioEvent, double gain) {
+		float[] audioFloatBuffer = audioEvent.getWritableFloatBufferArray();
+		int end = audioEvent.getBufferOffset() + audioEvent.getBufferSize();
+		for (int i = audioEvent.getBufferOffset() + audioEvent.getOverlap(); i < end ; i++) {
 			float newValue = (float) (audioFloatBuffer[i] * gain);
 			if(newValue > 1.0f) {
 				newValue = 1.0f;
@@ -58,7 +82,6 @@ public class GainProcessor implements AudioProcessor {
 			}
 			audioFloatBuffer[i] = newValue;
 		}
-		return true;
 	}
 	
 	@Override
@@ -0,0 +1,270 @@
+package priv.droptea.emotion.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import priv.droptea.emotion.AudioEvent;
+
+/**
+ * Runs a processing chain as a pipeline of stages, each stage on its own
+ * thread. While a later stage works on block n, an earlier stage already works
+ * on block n+1, so on a multi core machine the throughput approaches that of
+ * the slowest stage instead of the sum of all stages.
+ * <p>
+ * The chain is added to the dispatcher as one processor. The first stage runs
+ * on the dispatcher thread, processors which change the dispatcher (like
+ * {@link WsolaProcessor} with <code>setStepSizeAndOverlap</code>) belong in
+ * the first stage. At every stage boundary the event is copied into a recycled
+ * event, because processors reuse their buffers for the next block. The
+ * stages are connected by bounded queues: when a stage falls behind, the
+ * stages before it block instead of buffering without limit.
+ * </p>
+ * <p>
+ * Returning false from a processor stops the chain for that block, as in the
+ * dispatcher. The chain itself returns false when the first stage stops a
+ * block; the later stages run after it returns, their result does not reach
+ * the dispatcher. An exception in a later stage is thrown on the dispatcher
+ * thread with the next block, the blocks in between are discarded.
+ * </p>
+ * 把处理器链分成多个阶段，每个阶段在单独的线程中运行，相邻的音频块可以同时在不同阶段处理
+ */
+public class PipelinedProcessorChain implements AudioProcessor {
+
+	private static final Logger LOG = Logger.getLogger(PipelinedProcessorChain.class.getName());
+
+	/**
+	 * Marks the end of the stream in the queues of this chain, created with
+	 * the format of the first block.
+	 */
+	private AudioEvent endOfStream;
+
+	/**
+	 * The first failure of a later stage, reported on the dispatcher thread
+	 * with the next block.
+	 */
+	private volatile RuntimeException failure;
+
+	private final List<List<AudioProcessor>> stages;
+
+	/**
+	 * Input queue per stage, the first stage has none.
+	 */
+	private final List<BlockingQueue<AudioEvent>> queues;
+
+	/**
+	 * Recycled events for the handoff between stages.
+	 */
+	private BlockingQueue<AudioEvent> freeEvents;
+
+	private final int queueDepth;
+
+	private int eventsCreated;
+
+	private int maxEvents;
+
+	private final List<Thread> threads;
+
+	private volatile boolean started;
+
+	/**
+	 * Creates a pipeline without stages.
+	 * @param queueDepth The number of blocks that can wait between two stages.
+	 */
+	public PipelinedProcessorChain(int queueDepth) {
+		this.queueDepth = queueDepth;
+		stages = new ArrayList<List<AudioProcessor>>();
+		queues = new ArrayList<BlockingQueue<AudioEvent>>();
+		threads = new ArrayList<Thread>();
+	}
+
+	/**
+	 * Adds a stage with a segment of the chain. Stages run in the order they
+	 * are added, add them before processing starts.
+	 * @param processors The processors of the stage, run in this order.
+	 * @return This chain.
+	 */
+	public PipelinedProcessorChain addStage(AudioProcessor... processors) {
+		if (started) {
+			throw new IllegalStateException("Stages can not be added while the pipeline runs");
+		}
+		List<AudioProcessor> stage = new ArrayList<AudioProcessor>();
+		for (AudioProcessor processor : processors) {
+			stage.add(processor);
+		}
+		stages.add(stage);
+		queues.add(stages.size() == 1 ? null : new ArrayBlockingQueue<AudioEvent>(queueDepth));
+		return this;
+	}
+
+	private void start(AudioEvent firstEvent) {
+		endOfStream = new AudioEvent(firstEvent.getFormat());
+		started = true;
+		// per boundary: a full queue, the event held by the next stage and
+		// the event the previous stage is handing off
+		maxEvents = Math.max(1, (stages.size() - 1) * (queueDepth + 2));
+		freeEvents = new ArrayBlockingQueue<AudioEvent>(maxEvents);
+		for (int i = 1; i < stages.size(); i++) {
+			final int stageIndex = i;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					runStage(stageIndex);
+				}
+			}, "Pipeline stage " + i);
+			thread.setDaemon(true);
+			threads.add(thread);
+			thread.start();
+		}
+	}
+
+	@Override
+	public boolean process(AudioEvent audioEvent) {
+		if (!started) {
+			start(audioEvent);
+		}
+		RuntimeException stageFailure = failure;
+		if (stageFailure != null) {
+			throw new IllegalStateException("A pipeline stage failed", stageFailure);
+		}
+		if (!runSegment(stages.get(0), audioEvent)) {
+			return false;
+		}
+		if (stages.size() > 1) {
+			handOff(audioEvent, 1);
+		}
+		return true;
+	}
+
+	/**
+	 * Body of a stage thread: process events from the input queue until the
+	 * end of the stream arrives.
+	 */
+	private void runStage(int stageIndex) {
+		BlockingQueue<AudioEvent> input = queues.get(stageIndex);
+		List<AudioProcessor> stage = stages.get(stageIndex);
+		try {
+			while (true) {
+				AudioEvent audioEvent = input.take();
+				if (audioEvent == endOfStream) {
+					break;
+				}
+				// after a failure the blocks are only taken off the queue, the stages before do not block
+				if (failure == null) {
+					try {
+						if (runSegment(stage, audioEvent) && stageIndex + 1 < stages.size()) {
+							handOff(audioEvent, stageIndex + 1);
+						}
+					} catch (RuntimeException e) {
+						LOG.log(Level.SEVERE, "Error in pipeline stage " + stageIndex, e);
+						failure = e;
+					}
+				}
+				freeEvents.offer(audioEvent);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			for (AudioProcessor processor : stage) {
+				processor.processingFinished();
+			}
+			if (stageIndex + 1 < stages.size()) {
+				putUninterruptibly(queues.get(stageIndex + 1), endOfStream);
+			}
+		}
+	}
+
+	private boolean runSegment(List<AudioProcessor> segment, AudioEvent audioEvent) {
+		for (AudioProcessor processor : segment) {
+			if (!processor.process(audioEvent)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Copies the event into a recycled event and queues it for the next
+	 * stage. Blocks when the next stage is behind.
+	 */
+	private void handOff(AudioEvent audioEvent, int nextStage) {
+		AudioEvent handOffEvent = freeEvents.poll();
+		if (handOffEvent == null) {
+			synchronized (this) {
+				if (eventsCreated < maxEvents) {
+					eventsCreated++;
+					handOffEvent = new AudioEvent(audioEvent.getFormat());
+				}
+			}
+			if (handOffEvent == null) {
+				handOffEvent = takeUninterruptibly(freeEvents);
+			}
+		}
+		handOffEvent.copyFrom(audioEvent);
+		putUninterruptibly(queues.get(nextStage), handOffEvent);
+	}
+
+	private static AudioEvent takeUninterruptibly(BlockingQueue<AudioEvent> queue) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return queue.take();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static void putUninterruptibly(BlockingQueue<AudioEvent> queue, AudioEvent audioEvent) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					queue.put(audioEvent);
+					return;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Finishes the first stage, then lets every stage empty its queue and
+	 * finish in order. Returns when the last stage is done.
+	 */
+	@Override
+	public void processingFinished() {
+		if (stages.isEmpty()) {
+			return;
+		}
+		for (AudioProcessor processor : stages.get(0)) {
+			processor.processingFinished();
+		}
+		if (!started || stages.size() == 1) {
+			return;
+		}
+		putUninterruptibly(queues.get(1), endOfStream);
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+}
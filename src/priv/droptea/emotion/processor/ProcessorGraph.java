@@ -0,0 +1,443 @@
+package priv.droptea.emotion.processor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import priv.droptea.emotion.AudioEvent;
+import priv.droptea.emotion.AudioEventPool;
+
+/**
+ * Runs processors as a directed acyclic graph instead of a flat list. Every
+ * node gets the output of the nodes it is connected to, so e.g. metering,
+ * recording and playback can each follow the time stretcher on their own
+ * branch, without seeing what the other branches do to the samples.
+ * <p>
+ * Branches share the samples: at a fan-out every branch gets an event on the
+ * same pooled storage (see {@link AudioEvent#retain()}). A processor that
+ * changes samples in place must use
+ * {@link AudioEvent#getWritableFloatBufferArray()}, which copies shared
+ * samples first, processors that replace the buffer need nothing special. The
+ * samples are only copied when a branch actually writes. A node with several
+ * inputs gets the sum of its inputs.
+ * </p>
+ * <p>
+ * Nodes run in topological order. With {@link #setParallelism(int)} nodes that
+ * do not depend on each other run at the same time, on a few worker threads.
+ * Returning false from a processor stops its branch for that block, the rest
+ * of the graph still runs. The graph is added to the dispatcher as one
+ * processor, build it before processing starts.
+ * </p>
+ * 处理器图：分支共享样本数据，写入时才复制；按拓扑顺序执行，互不依赖的分支可以并行
+ */
+public class ProcessorGraph implements AudioProcessor {
+
+	/**
+	 * A processor in the graph.
+	 */
+	public static final class Node {
+
+		private final AudioProcessor processor;
+
+		private final List<Node> inputs = new ArrayList<Node>();
+
+		private final List<Node> outputs = new ArrayList<Node>();
+
+		/**
+		 * The length of the longest path from a root, nodes with the same
+		 * depth do not depend on each other.
+		 */
+		private int depth;
+
+		/**
+		 * The events from the inputs of the current block, null for an input
+		 * that did not deliver.
+		 */
+		private AudioEvent[] inputEvents;
+
+		/**
+		 * The input of a root for the current block.
+		 */
+		private AudioEvent sourceEvent;
+
+		/**
+		 * Events created by this node for the current block, released when
+		 * the block is done.
+		 */
+		private final List<AudioEvent> ownedEvents = new ArrayList<AudioEvent>();
+
+		private Node(AudioProcessor processor) {
+			this.processor = processor;
+		}
+
+		public AudioProcessor getProcessor() {
+			return processor;
+		}
+	}
+
+	private static final int POOL_SIZE = 64;
+
+	private final List<Node> nodes = new ArrayList<Node>();
+
+	/**
+	 * The nodes per depth, in topological order.
+	 */
+	private final List<List<Node>> levels = new ArrayList<List<Node>>();
+
+	private final List<Node> roots = new ArrayList<Node>();
+
+	/**
+	 * Events created to share the input between the roots.
+	 */
+	private final List<AudioEvent> ownedEvents = new ArrayList<AudioEvent>();
+
+	private int parallelism = 1;
+
+	private ExecutorService executor;
+
+	/**
+	 * Storage for branches of events that are not pooled, created with the
+	 * format of the first event.
+	 */
+	private AudioEventPool pool;
+
+	private boolean started;
+
+	/**
+	 * Adds a processor to the graph.
+	 *
+	 * @param processor
+	 *            The processor.
+	 * @param inputs
+	 *            The nodes whose output the processor gets. Without inputs the
+	 *            processor gets the events of the dispatcher.
+	 * @return The node of the processor, to connect later nodes to.
+	 */
+	public Node add(AudioProcessor processor, Node... inputs) {
+		checkNotStarted();
+		Node node = new Node(processor);
+		nodes.add(node);
+		for (Node input : inputs) {
+			connect(input, node);
+		}
+		return node;
+	}
+
+	/**
+	 * Sends the output of one node to another node as well.
+	 *
+	 * @param from
+	 *            The node that produces the audio.
+	 * @param to
+	 *            The node that gets it, mixed with its other inputs.
+	 * @throws IllegalArgumentException
+	 *             If the connection would create a cycle.
+	 */
+	public void connect(Node from, Node to) {
+		checkNotStarted();
+		if (!nodes.contains(from) || !nodes.contains(to)) {
+			throw new IllegalArgumentException("Both nodes must belong to this graph");
+		}
+		if (from == to || reaches(to, from)) {
+			throw new IllegalArgumentException("Connecting " + name(from) + " to " + name(to) + " creates a cycle");
+		}
+		from.outputs.add(to);
+		to.inputs.add(from);
+	}
+
+	private static boolean reaches(Node from, Node to) {
+		for (Node output : from.outputs) {
+			if (output == to || reaches(output, to)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String name(Node node) {
+		return node.processor.getClass().getSimpleName();
+	}
+
+	/**
+	 * Runs independent nodes on several threads. Worth it when branches do
+	 * heavy work, for cheap processors the handoff costs more than it saves.
+	 *
+	 * @param threads
+	 *            The number of threads, including the dispatcher thread. One
+	 *            (the default) runs the whole graph on the dispatcher thread.
+	 */
+	public void setParallelism(int threads) {
+		checkNotStarted();
+		this.parallelism = Math.max(1, threads);
+	}
+
+	private void checkNotStarted() {
+		if (started) {
+			throw new IllegalStateException("The graph can not be changed while it runs");
+		}
+	}
+
+	/**
+	 * Sorts the nodes by depth (Kahn's algorithm) and starts the workers.
+	 * Within a depth the nodes keep the order they were added in.
+	 */
+	private void start() {
+		started = true;
+		List<Node> ready = new ArrayList<Node>();
+		int[] pendingInputs = new int[nodes.size()];
+		for (int i = 0; i < nodes.size(); i++) {
+			Node node = nodes.get(i);
+			node.inputEvents = new AudioEvent[node.inputs.size()];
+			node.depth = 0;
+			pendingInputs[i] = node.inputs.size();
+			if (pendingInputs[i] == 0) {
+				ready.add(node);
+				roots.add(node);
+			}
+		}
+		while (!ready.isEmpty()) {
+			Node node = ready.remove(0);
+			for (Node output : node.outputs) {
+				output.depth = Math.max(output.depth, node.depth + 1);
+				if (--pendingInputs[nodes.indexOf(output)] == 0) {
+					ready.add(output);
+				}
+			}
+		}
+		for (Node node : nodes) {
+			while (levels.size() <= node.depth) {
+				levels.add(new ArrayList<Node>());
+			}
+			levels.get(node.depth).add(node);
+		}
+		if (parallelism > 1) {
+			executor = Executors.newFixedThreadPool(parallelism - 1, new ThreadFactory() {
+				private int created;
+
+				@Override
+				public synchronized Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Processor graph worker " + ++created);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	@Override
+	public boolean process(AudioEvent audioEvent) {
+		if (!started) {
+			start();
+		}
+		if (!audioEvent.isPooled() && pool == null) {
+			pool = new AudioEventPool(audioEvent.getFormat(), POOL_SIZE);
+		}
+		try {
+			AudioEvent input = shareable(audioEvent, roots.size(), ownedEvents);
+			for (int i = 0; i < roots.size(); i++) {
+				roots.get(i).sourceEvent = branch(input, i, ownedEvents);
+			}
+			for (int depth = 0; depth < levels.size(); depth++) {
+				List<Node> level = levels.get(depth);
+				if (executor == null || level.size() == 1) {
+					for (Node node : level) {
+						runNode(node);
+					}
+				} else {
+					runInParallel(level);
+				}
+			}
+		} finally {
+			release(ownedEvents);
+			for (Node node : nodes) {
+				release(node.ownedEvents);
+				node.sourceEvent = null;
+				if (node.inputEvents != null) {
+					Arrays.fill(node.inputEvents, null);
+				}
+			}
+		}
+		return true;
+	}
+
+	private static void release(List<AudioEvent> events) {
+		for (AudioEvent event : events) {
+			event.release();
+		}
+		events.clear();
+	}
+
+	/**
+	 * Runs the first node of the level on this thread and the others on the
+	 * workers, returns when all are done.
+	 */
+	private void runInParallel(List<Node> level) {
+		List<Future<?>> futures = new ArrayList<Future<?>>(level.size() - 1);
+		for (int i = 1; i < level.size(); i++) {
+			final Node node = level.get(i);
+			futures.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					runNode(node);
+				}
+			}));
+		}
+		RuntimeException failure = null;
+		try {
+			runNode(level.get(0));
+		} catch (RuntimeException e) {
+			failure = e;
+		}
+		boolean interrupted = false;
+		for (Future<?> future : futures) {
+			while (true) {
+				try {
+					future.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+								: new IllegalStateException("Processor failed in the graph", e.getCause());
+					}
+					break;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Processes the input of a node and hands the result to its outputs.
+	 */
+	private void runNode(Node node) {
+		AudioEvent event = node.inputs.isEmpty() ? node.sourceEvent : input(node);
+		if (event == null || !node.processor.process(event) || node.outputs.isEmpty()) {
+			return;
+		}
+		event = shareable(event, node.outputs.size(), node.ownedEvents);
+		for (int i = 0; i < node.outputs.size(); i++) {
+			Node output = node.outputs.get(i);
+			output.inputEvents[output.inputs.indexOf(node)] = branch(event, i, node.ownedEvents);
+		}
+	}
+
+	/**
+	 * @return The event itself, or for a fan-out of an event that is not
+	 *         pooled one copy into pooled storage, which all branches share.
+	 */
+	private AudioEvent shareable(AudioEvent event, int branches, List<AudioEvent> owned) {
+		if (branches < 2 || event.isPooled()) {
+			return event;
+		}
+		AudioEvent shared = pool.acquire();
+		shared.copyFrom(event);
+		owned.add(shared);
+		return shared;
+	}
+
+	/**
+	 * @return The event for a branch of a fan-out: the first branch gets the
+	 *         event itself, the others an event sharing its samples.
+	 */
+	private static AudioEvent branch(AudioEvent event, int index, List<AudioEvent> owned) {
+		if (index == 0) {
+			return event;
+		}
+		AudioEvent branch = event.retain();
+		owned.add(branch);
+		return branch;
+	}
+
+	/**
+	 * @return The single input of the node, the sum of its inputs, or null if
+	 *         no input delivered.
+	 */
+	private AudioEvent input(Node node) {
+		AudioEvent first = null;
+		AudioEvent mix = null;
+		for (AudioEvent input : node.inputEvents) {
+			if (input == null) {
+				continue;
+			}
+			if (first == null) {
+				first = input;
+				continue;
+			}
+			if (mix == null) {
+				// a private copy of the first input to add the others to
+				mix = first.isPooled() ? first.retain() : pool.acquire();
+				if (!first.isPooled()) {
+					mix.copyFrom(first);
+				}
+				node.ownedEvents.add(mix);
+			}
+			addTo(mix, input);
+		}
+		return mix != null ? mix : first;
+	}
+
+	/**
+	 * Adds the samples of an input to the mix, as far as both reach.
+	 */
+	private static void addTo(AudioEvent mix, AudioEvent input) {
+		int length = Math.min(mix.getBufferSize(), input.getBufferSize());
+		if (mix.isPlanar() != input.isPlanar()) {
+			throw new IllegalStateException("Planar and interleaved inputs can not be mixed");
+		}
+		if (mix.isPlanar()) {
+			float[][] target = mix.getWritableChannelBufferArrays();
+			float[][] source = input.getChannelBufferArrays();
+			for (int c = 0; c < target.length; c++) {
+				add(source[c], input.getBufferOffset(), target[c], mix.getBufferOffset(), length);
+			}
+		} else {
+			add(input.getFloatBufferArray(), input.getBufferOffset(), mix.getWritableFloatBufferArray(), mix.getBufferOffset(), length);
+		}
+	}
+
+	private static void add(float[] source, int sourceOffset, float[] target, int targetOffset, int length) {
+		for (int i = 0; i < length; i++) {
+			target[targetOffset + i] += source[sourceOffset + i];
+		}
+	}
+
+	/**
+	 * @return The nodes in the order they run.
+	 */
+	public List<Node> getNodes() {
+		if (!started) {
+			return Collections.unmodifiableList(nodes);
+		}
+		List<Node> ordered = new ArrayList<Node>(nodes.size());
+		for (List<Node> level : levels) {
+			ordered.addAll(level);
+		}
+		return ordered;
+	}
+
+	/**
+	 * Finishes the processors in topological order and stops the workers.
+	 */
+	@Override
+	public void processingFinished() {
+		for (Node node : getNodes()) {
+			node.processor.processingFinished();
+		}
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+}
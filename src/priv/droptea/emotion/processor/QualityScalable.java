@@ -0,0 +1,31 @@
+package priv.droptea.emotion.processor;
+
+/**
+ * A processor that can trade quality for processing time. Level zero is the
+ * best quality, every higher level is cheaper. A
+ * {@link priv.droptea.emotion.DeadlineScheduler} steps the level up when the
+ * chain comes close to its real-time deadline and back down when there is
+ * headroom again.
+ * 
+ * 可以降低质量换取处理速度的处理器，级别0质量最好，级别越高越省时
+ */
+public interface QualityScalable {
+
+	/**
+	 * @return The cheapest level, zero if the quality can not be lowered.
+	 */
+	int getMaxQualityLevel();
+
+	/**
+	 * @return The current level.
+	 */
+	int getQualityLevel();
+
+	/**
+	 * Changes the level, takes effect from the next block on.
+	 * 
+	 * @param level
+	 *            A level between zero and {@link #getMaxQualityLevel()}.
+	 */
+	void setQualityLevel(int level);
+}
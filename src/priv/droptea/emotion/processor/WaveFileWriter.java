@@ -0,0 +1,223 @@
+package priv.droptea.emotion.processor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import priv.droptea.emotion.AudioEvent;
+import priv.droptea.emotion.io.TarsosDSPAudioFloatConverter;
+import priv.droptea.emotion.io.TarsosDSPAudioFormat;
+
+/**
+ * Writes the audio of the chain to a PCM WAV file. The samples are streamed to
+ * disk block by block, the sizes in the header are filled in when processing
+ * finishes, so memory use does not depend on the length of the audio. Only the
+ * new part of every block is written, not the overlap with the previous block.
+ * <p>
+ * Blocks are collected in a direct buffer and written to the file channel
+ * when it is full, so the disk sees a few large writes instead of one small
+ * write per block, without a copy into a temporary direct buffer. The header
+ * is patched in place at the end.
+ * </p>
+ *
+ * 把处理后的音频写入WAV文件，边处理边写，内存占用与音频长度无关
+ */
+public class WaveFileWriter implements AudioProcessor {
+
+	private static final Logger LOG = Logger.getLogger(WaveFileWriter.class.getName());
+
+	private static final int HEADER_SIZE = 44;
+
+	/**
+	 * The default size of the write buffer.
+	 */
+	private static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+	private final File file;
+
+	/**
+	 * The format of the file: the format of the chain, little endian as
+	 * required by WAV.
+	 */
+	private final TarsosDSPAudioFormat wavFormat;
+
+	private final TarsosDSPAudioFloatConverter converter;
+
+	private FileChannel channel;
+
+	/**
+	 * Collects the converted blocks until it is full.
+	 */
+	private final ByteBuffer writeBuffer;
+
+	private byte[] byteBuffer;
+
+	private long dataBytes;
+
+	/**
+	 * Creates the file and writes a preliminary header.
+	 *
+	 * @param format
+	 *            The format of the audio in the chain.
+	 * @param file
+	 *            The file to write, overwritten if it exists.
+	 * @throws IOException
+	 *             If the file can not be created.
+	 */
+	public WaveFileWriter(TarsosDSPAudioFormat format, File file) throws IOException {
+		this(format, file, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Creates the file and writes a preliminary header.
+	 *
+	 * @param format
+	 *            The format of the audio in the chain.
+	 * @param file
+	 *            The file to write, overwritten if it exists.
+	 * @param bufferSize
+	 *            The number of bytes collected before they are written, larger
+	 *            buffers mean fewer writes.
+	 * @throws IOException
+	 *             If the file can not be created.
+	 */
+	public WaveFileWriter(TarsosDSPAudioFormat format, File file, int bufferSize) throws IOException {
+		this.file = file;
+		int bits = format.getSampleSizeInBits();
+		wavFormat = new TarsosDSPAudioFormat(format.getSampleRate(), bits, format.getChannels(), bits > 8, false);
+		converter = TarsosDSPAudioFloatConverter.getSharedConverter(wavFormat);
+		writeBuffer = ByteBuffer.allocateDirect(Math.max(bufferSize, HEADER_SIZE));
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		writeBuffer.put(header(0));
+	}
+
+	@Override
+	public boolean process(AudioEvent audioEvent) {
+		if (channel == null) {
+			return true;
+		}
+		int sampleBytes = wavFormat.getFrameSize() / wavFormat.getChannels();
+		int start = audioEvent.getBufferOffset() + audioEvent.getOverlap();
+		int length = audioEvent.getBufferSize() - audioEvent.getOverlap();
+		int bytes = audioEvent.isPlanar() ? length * wavFormat.getFrameSize() : length * sampleBytes;
+		if (byteBuffer == null || byteBuffer.length < bytes) {
+			byteBuffer = new byte[bytes];
+		}
+		if (audioEvent.isPlanar()) {
+			converter.toByteArray(audioEvent.getChannelBufferArrays(), start, length, byteBuffer, 0);
+		} else {
+			converter.toByteArray(audioEvent.getFloatBufferArray(), start, length, byteBuffer, 0);
+		}
+		try {
+			int written = 0;
+			while (written < bytes) {
+				if (!writeBuffer.hasRemaining()) {
+					flush();
+				}
+				int count = Math.min(bytes - written, writeBuffer.remaining());
+				writeBuffer.put(byteBuffer, written, count);
+				written += count;
+			}
+			dataBytes += bytes;
+		} catch (IOException e) {
+			LOG.log(Level.SEVERE, "Could not write to " + file + ", stopped writing", e);
+			close();
+		}
+		return true;
+	}
+
+	/**
+	 * Closes the file and fills in the sizes in the header.
+	 */
+	@Override
+	public void processingFinished() {
+		if (channel == null) {
+			return;
+		}
+		try {
+			flush();
+			ByteBuffer header = ByteBuffer.wrap(header(dataBytes));
+			while (header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+		} catch (IOException e) {
+			LOG.log(Level.SEVERE, "Could not write the header of " + file, e);
+		}
+		close();
+	}
+
+	/**
+	 * Writes the collected blocks to the file.
+	 */
+	private void flush() throws IOException {
+		writeBuffer.flip();
+		while (writeBuffer.hasRemaining()) {
+			channel.write(writeBuffer);
+		}
+		writeBuffer.clear();
+	}
+
+	private void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Could not close " + file, e);
+		}
+		channel = null;
+	}
+
+	/**
+	 * @return The number of bytes of audio written so far.
+	 */
+	public long getDataBytes() {
+		return dataBytes;
+	}
+
+	/**
+	 * @return A canonical 44 byte WAV header for the given amount of audio
+	 *         data.
+	 */
+	private byte[] header(long dataLength) {
+		int channels = wavFormat.getChannels();
+		int sampleRate = (int) wavFormat.getSampleRate();
+		int blockAlign = wavFormat.getFrameSize();
+		byte[] header = new byte[HEADER_SIZE];
+		putAscii(header, 0, "RIFF");
+		putInt(header, 4, (int) Math.min(0xFFFFFFFFL, dataLength + HEADER_SIZE - 8));
+		putAscii(header, 8, "WAVE");
+		putAscii(header, 12, "fmt ");
+		putInt(header, 16, 16);
+		putShort(header, 20, 1);
+		putShort(header, 22, channels);
+		putInt(header, 24, sampleRate);
+		putInt(header, 28, sampleRate * blockAlign);
+		putShort(header, 32, blockAlign);
+		putShort(header, 34, wavFormat.getSampleSizeInBits());
+		putAscii(header, 36, "data");
+		putInt(header, 40, (int) Math.min(0xFFFFFFFFL, dataLength));
+		return header;
+	}
+
+	private static void putAscii(byte[] target, int offset, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			target[offset + i] = (byte) value.charAt(i);
+		}
+	}
+
+	private static void putInt(byte[] target, int offset, int value) {
+		target[offset] = (byte) value;
+		target[offset + 1] = (byte) (value >>> 8);
+		target[offset + 2] = (byte) (value >>> 16);
+		target[offset + 3] = (byte) (value >>> 24);
+	}
+
+	private static void putShort(byte[] target, int offset, int value) {
+		target[offset] = (byte) value;
+		target[offset + 1] = (byte) (value >>> 8);
+	}
+}
@@ -13,13 +13,8 @@ public class WaveformChartProcessor  implements AudioProcessor {
 
 	@Override
 	public boolean process(AudioEvent audioEvent) {
-		float[] audioFloatBuffer = audioEvent.getFloatBuffer();
-		float[] copyBuffer = new float[audioFloatBuffer.length];
-		System.arraycopy(audioFloatBuffer,0, copyBuffer,0 ,audioFloatBuffer.length);
-		AudioEvent copyAudioEvent = new AudioEvent(audioEvent.getFormat());
-		copyAudioEvent.setDataForAnalysisInWaveformChart(audioEvent.getDataForAnalysisInWaveformChart());
-		copyAudioEvent.getDataForAnalysisInWaveformChart().setFloatBufferCur(copyBuffer);
-		mWaveformChartPanel.addAudioEvent(copyAudioEvent);
+		//池中的事件只增加引用计数，不复制数据；保留的事件有自己的图表数据，图表线程用完后释放
+		mWaveformChartPanel.addAudioEvent(audioEvent.retain());
 		return true;
 	}
 
@@ -24,6 +24,8 @@
 
 package priv.droptea.emotion.processor;
 
+import java.util.logging.Logger;
+
 import priv.droptea.emotion.AudioDispatcher;
 import priv.droptea.emotion.AudioEvent;
 
@@ -50,7 +52,18 @@ import priv.droptea.emotion.AudioEvent;
  * @author Joren Six
  * @author Olli Parviainen
  */
-public class WsolaProcessor implements AudioProcessor {	
+public class WsolaProcessor implements AudioProcessor, QualityScalable {	
+	
+	private static final Logger LOG = Logger.getLogger(WsolaProcessor.class.getName());
+	
+	/**
+	 * Quality levels: 0 tests every position in the seek window, 1 tests every
+	 * second position and refines around the best one, 2 does the same on the
+	 * middle half of the seek window only.
+	 */
+	private static final int MAX_QUALITY_LEVEL = 2;
+	//质量级别，级别越高搜索的位置越少
+	private volatile int qualityLevel;
 	//搜索窗长度
 	private int seekWindowLength;
 	//搜索窗可移动距离长度
@@ -73,6 +86,16 @@ public class WsolaProcessor implements AudioProcessor {
 	private AudioDispatcher dispatcher;
 
 	private Parameters newParameters;
+	//自行缓冲输入时的分析帧FIFO，有效数据在inputFifoStart和inputFifoEnd之间
+	private boolean inputBuffering;
+	private float[] inputFifo;
+	private int inputFifoStart, inputFifoEnd;
+	//自行缓冲输入时输出的合成帧，可能包含多个合成帧
+	private float[] outputBuffer;
+	//批处理时参数改变推迟到整批处理完，批中的分析帧都是按旧参数读取的
+	private boolean processingBatch;
+	//太短而无法处理的分析帧数量
+	private long droppedFrames;
 	
 	/**
 	 * Create a new instance based on algorithm parameters for a certain audio format.
@@ -116,12 +139,13 @@ public class WsolaProcessor implements AudioProcessor {
 		analysisFrameLength = Math.max(effectiveFrameLengthInAnalysisFrame + overlapLength, seekWindowLength) + seekWindowMoveLength;
 		duplicateLengthInAnalysisFrame = analysisFrameLength-effectiveFrameLengthInAnalysisFrame;
 		
+		//合成帧数组只在长度变化时重新分配，事件拿到的数组长度始终等于合成帧长度
 		float[] prevCompositeFrameBuffer = compositeFrameBuffer;
-		compositeFrameBuffer = new float[getCompositeFrameLength()];
-		if(prevCompositeFrameBuffer!=null){
-			System.out.println("Copy outputFloatBuffer contents");
-			for(int i = 0 ; i < prevCompositeFrameBuffer.length && i < compositeFrameBuffer.length ; i++){
-				compositeFrameBuffer[i] = prevCompositeFrameBuffer[i];
+		if(prevCompositeFrameBuffer == null || prevCompositeFrameBuffer.length != getCompositeFrameLength()){
+			compositeFrameBuffer = new float[getCompositeFrameLength()];
+			if(prevCompositeFrameBuffer!=null){
+				System.out.println("Copy outputFloatBuffer contents");
+				System.arraycopy(prevCompositeFrameBuffer, 0, compositeFrameBuffer, 0, Math.min(prevCompositeFrameBuffer.length, compositeFrameBuffer.length));
 			}
 		}
 		
@@ -168,22 +192,43 @@ public class WsolaProcessor implements AudioProcessor {
 	 * @return The best position.
 	 */
 	private int seekBestOverlapPosition(float[] inputBuffer, int postion) {
+		// Slopes the amplitude of the 'midBuffer' samples
+		precalcCorrReferenceMono();
+
+		int level = qualityLevel;
+		if (level == 0) {
+			// Scans for the best correlation value by testing each possible
+			// position
+			// over the permitted range.
+			return seekBestOverlapPosition(inputBuffer, postion, 0, seekWindowMoveLength, 1);
+		}
+		// cheaper search: a coarse scan, then the neighbours of the best position
+		int start = 0;
+		int end = seekWindowMoveLength;
+		if (level >= 2) {
+			start = seekWindowMoveLength / 4;
+			end = seekWindowMoveLength - start;
+		}
+		int coarseOffset = seekBestOverlapPosition(inputBuffer, postion, start, end, 2);
+		return seekBestOverlapPosition(inputBuffer, postion, Math.max(start, coarseOffset - 1), Math.min(end, coarseOffset + 2), 1);
+	}
+	
+	/**
+	 * Tests the positions <code>start, start + stride, ...</code> below
+	 * <code>end</code> in the seek window.
+	 * @return The best position, relative to the start of the seek window.
+	 */
+	private int seekBestOverlapPosition(float[] inputBuffer, int postion, int start, int end, int stride) {
 		int bestOffset;
 		double bestCorrelation, currentCorrelation;
 		int tempOffset;
 
 		int comparePosition;
 
-		// Slopes the amplitude of the 'midBuffer' samples
-		precalcCorrReferenceMono();
-
 		bestCorrelation = -10;
-		bestOffset = 0;
+		bestOffset = start;
 
-		// Scans for the best correlation value by testing each possible
-		// position
-		// over the permitted range.
-		for (tempOffset = 0; tempOffset < seekWindowMoveLength; tempOffset++) {
+		for (tempOffset = start; tempOffset < end; tempOffset += stride) {
 
 			comparePosition = postion + tempOffset;
 			//计算两个波形的相似度
@@ -236,41 +281,190 @@ public class WsolaProcessor implements AudioProcessor {
 	
 	@Override
 	public boolean process(AudioEvent audioEvent) {
-		float[] audioFloatBuffer = audioEvent.getFloatBuffer();
-		assert audioFloatBuffer.length == getAnalysisFrameLength();
+		if(inputBuffering){
+			return processBuffered(audioEvent);
+		}
+		//分析帧可能是一个更大数组中的一段，从frameStart开始
+		float[] audioFloatBuffer = audioEvent.getFloatBufferArray();
+		int frameStart = audioEvent.getBufferOffset();
+		//不补零时流末尾的分析帧可能放不下搜索窗和移动距离，只能丢弃
+		if(audioEvent.getBufferSize() < seekWindowLength + seekWindowMoveLength){
+			droppedFrames++;
+			LOG.fine("Dropped an analysis frame of " + audioEvent.getBufferSize() + " samples, "
+					+ (seekWindowLength + seekWindowMoveLength) + " are needed");
+			return false;
+		}
+		int offset = synthesize(audioFloatBuffer, frameStart);
+		
+		audioEvent.setFloatBuffer(compositeFrameBuffer);
+		audioEvent.setOverlap(0);
+		setChartData(audioEvent, offset);
+		if(newParameters!=null && !processingBatch){
+			applyNewParameters();
+			dispatcher.setStepSizeAndOverlap(getAnalysisFrameLength(),getDuplicateLengthInAnalysisFrame());
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Processes the blocks of a batch with the parameters they were read
+	 * with, a new tempo applies from the next batch on, like the new frame
+	 * length of the dispatcher.
+	 */
+	@Override
+	public boolean processBatch(AudioEvent[] audioEvents, boolean[] proceed, int count) {
+		boolean anyProceeds;
+		processingBatch = !inputBuffering;
+		try {
+			anyProceeds = AudioProcessor.super.processBatch(audioEvents, proceed, count);
+		} finally {
+			processingBatch = false;
+		}
+		if(newParameters!=null && !inputBuffering){
+			applyNewParameters();
+			dispatcher.setStepSizeAndOverlap(getAnalysisFrameLength(),getDuplicateLengthInAnalysisFrame());
+		}
+		return anyProceeds;
+	}
+	
+	/**
+	 * @return The number of analysis frames dropped because they were too
+	 *         short, e.g. the last one of a stream that is not zero padded.
+	 */
+	public long getDroppedFrames(){
+		return droppedFrames;
+	}
+	
+	/**
+	 * Builds the next composite frame from an analysis frame.
+	 * @return The offset of the best overlap position in the analysis frame.
+	 */
+	private int synthesize(float[] audioFloatBuffer, int frameStart){
 		//用上一个搜索窗尾部重叠区域大小的数据（波形数据）作为参考，从当前分析帧头部开始往后平移寻找最相似的数据（相似的波形数据），返回平移的距离
-		int offset =  seekBestOverlapPosition(audioFloatBuffer,0);
+		int offset =  seekBestOverlapPosition(audioFloatBuffer,frameStart);
 		//把两个相似波形叠加并添加到合成帧数组的开头
-		overlap(compositeFrameBuffer,0,audioFloatBuffer,offset);
+		overlap(compositeFrameBuffer,0,audioFloatBuffer,frameStart + offset);
 		//把搜索窗中的非重叠区域直接加到合成帧组成完整的合成帧
 		int notOverlapLength = seekWindowLength - 2 * overlapLength;
-		System.arraycopy(audioFloatBuffer, offset + overlapLength, compositeFrameBuffer, overlapLength, notOverlapLength);
+		System.arraycopy(audioFloatBuffer, frameStart + offset + overlapLength, compositeFrameBuffer, overlapLength, notOverlapLength);
 	    //保存搜索窗尾部重叠区域大小的数据到pMidBuffer数组里，用于下一个分析帧进行相似波形匹配
-		System.arraycopy(audioFloatBuffer, offset + notOverlapLength + overlapLength, pMidBuffer, 0, overlapLength);
+		System.arraycopy(audioFloatBuffer, frameStart + offset + notOverlapLength + overlapLength, pMidBuffer, 0, overlapLength);
 		
 		assert compositeFrameBuffer.length == getCompositeFrameLength();
-		
-		audioEvent.setFloatBuffer(compositeFrameBuffer);
-		audioEvent.setOverlap(0);
-		float[] copyBuffer = new float[compositeFrameBuffer.length];
-		System.arraycopy(compositeFrameBuffer,0, copyBuffer,0 ,compositeFrameBuffer.length);
+		return offset;
+	}
+	
+	private void setChartData(AudioEvent audioEvent, int offset){
+		if(audioEvent.getDataForAnalysisInWaveformChart() == null){
+			return;
+		}
+		int compositeFrameLength = getCompositeFrameLength();
+		float[] copyBuffer = audioEvent.getDataForAnalysisInWaveformChart().getFloatBufferWsola();
+		if(copyBuffer == null || copyBuffer.length != compositeFrameLength){
+			copyBuffer = new float[compositeFrameLength];
+		}
+		System.arraycopy(compositeFrameBuffer,0, copyBuffer,0 ,compositeFrameLength);
 		audioEvent.getDataForAnalysisInWaveformChart().setFloatBufferWsola(copyBuffer);
 		audioEvent.getDataForAnalysisInWaveformChart().setSeekWinOffsetWsola(offset);
 		audioEvent.getDataForAnalysisInWaveformChart().setSeekWindowMoveLengthWsola(seekWindowMoveLength);
 		audioEvent.getDataForAnalysisInWaveformChart().setOverlapWsola(overlapLength);
-		audioEvent.getDataForAnalysisInWaveformChart().setDataNotOverlapWsola(compositeFrameBuffer.length-overlapLength);
-		if(newParameters!=null){
-			applyNewParameters();
-			dispatcher.setStepSizeAndOverlap(getAnalysisFrameLength(),getDuplicateLengthInAnalysisFrame());
+		audioEvent.getDataForAnalysisInWaveformChart().setDataNotOverlapWsola(compositeFrameLength-overlapLength);
+	}
+	
+	/**
+	 * Lets WSOLA cut the analysis frames itself, from blocks of any size: the
+	 * new samples of every block are added to an internal FIFO, every
+	 * complete analysis frame in the FIFO is processed and the composite
+	 * frames are sent on as one block. A block that completes no analysis
+	 * frame stops the chain. The dispatcher can then run with a small fixed
+	 * block size for low latency, whatever the tempo, and is never resized:
+	 * no {@link #setDispatcher(AudioDispatcher)} needed.
+	 * <p>
+	 * Samples at the end of the stream that do not fill an analysis frame
+	 * are not processed.
+	 * </p>
+	 * @param inputBuffering True to buffer the input, false to process every block as one analysis frame.
+	 */
+	public void setInputBuffering(boolean inputBuffering){
+		this.inputBuffering = inputBuffering;
+		inputFifoStart = inputFifoEnd = 0;
+	}
+	
+	public boolean isInputBuffering(){
+		return inputBuffering;
+	}
+	
+	private boolean processBuffered(AudioEvent audioEvent){
+		//把新数据（不含重叠区域）加入输入FIFO
+		int newSamples = audioEvent.getBufferSize() - audioEvent.getOverlap();
+		appendToInputFifo(audioEvent.getFloatBufferArray(), audioEvent.getBufferOffset() + audioEvent.getOverlap(), newSamples);
+		int outputLength = 0;
+		int offset = 0;
+		//FIFO中每凑够一个分析帧就合成一个合成帧，分析帧之间的步长是有效帧长度
+		while(inputFifoEnd - inputFifoStart >= analysisFrameLength){
+			offset = synthesize(inputFifo, inputFifoStart);
+			inputFifoStart += effectiveFrameLengthInAnalysisFrame;
+			int compositeFrameLength = getCompositeFrameLength();
+			if(outputBuffer == null || outputBuffer.length < outputLength + compositeFrameLength){
+				float[] larger = new float[Math.max(2 * outputLength, outputLength + compositeFrameLength)];
+				if(outputBuffer != null){
+					System.arraycopy(outputBuffer, 0, larger, 0, outputLength);
+				}
+				outputBuffer = larger;
+			}
+			System.arraycopy(compositeFrameBuffer, 0, outputBuffer, outputLength, compositeFrameLength);
+			outputLength += compositeFrameLength;
+			if(newParameters!=null){
+				applyNewParameters();
+			}
 		}
-		
+		if(outputLength == 0){
+			return false;
+		}
+		audioEvent.setFloatBufferView(outputBuffer, 0, outputLength);
+		audioEvent.setOverlap(0);
+		setChartData(audioEvent, offset);
 		return true;
 	}
+	
+	private void appendToInputFifo(float[] samples, int start, int length){
+		int queued = inputFifoEnd - inputFifoStart;
+		if(inputFifo == null || inputFifoEnd + length > inputFifo.length){
+			float[] target = inputFifo;
+			if(target == null || queued + length > target.length){
+				target = new float[Math.max(2 * analysisFrameLength, 2 * (queued + length))];
+			}
+			if(queued > 0){
+				System.arraycopy(inputFifo, inputFifoStart, target, 0, queued);
+			}
+			inputFifo = target;
+			inputFifoStart = 0;
+			inputFifoEnd = queued;
+		}
+		System.arraycopy(samples, start, inputFifo, inputFifoEnd, length);
+		inputFifoEnd += length;
+	}
 
 	@Override
 	public void processingFinished() {
 		// NOOP
 	}
+	
+	@Override
+	public int getMaxQualityLevel() {
+		return MAX_QUALITY_LEVEL;
+	}
+	
+	@Override
+	public int getQualityLevel() {
+		return qualityLevel;
+	}
+	
+	@Override
+	public void setQualityLevel(int level) {
+		qualityLevel = Math.max(0, Math.min(MAX_QUALITY_LEVEL, level));
+	}
 
 
 	
@@ -25,6 +25,7 @@ package priv.droptea.emotion.resample;
 
 import priv.droptea.emotion.AudioEvent;
 import priv.droptea.emotion.processor.AudioProcessor;
+import priv.droptea.emotion.processor.QualityScalable;
 
 /**
  * Sample rate transposer. Changes sample rate by using  interpolation 
@@ -32,10 +33,24 @@ import priv.droptea.emotion.processor.AudioProcessor;
  * Together with the time stretcher this can be used for pitch shifting.
  * @author Joren Six
  */
-public class RateTransposer implements AudioProcessor {
+public class RateTransposer implements AudioProcessor, QualityScalable {
+
+	/**
+	 * Quality levels: 0 uses the band limited resampler, 1 linear
+	 * interpolation.
+	 */
+	private static final int MAX_QUALITY_LEVEL = 1;
 
 	private double factor;
     private Resampler r;
+    //质量级别，1表示用线性插值代替重采样滤波器
+    private volatile int qualityLevel;
+    //上一块使用的质量级别，切换回重采样滤波器时用线性插值期间的输入重新设置它的历史数据
+    private int processedQualityLevel;
+    //线性插值期间最后两个滤波器宽度的输入样本
+    private final float[] history;
+    //上一块的最后一个输入样本，线性插值时与下一块的开头连接
+    private float lastSample;
     
 	/**
 	 * Create a new sample rate transposer. The factor determines the new sample
@@ -56,6 +71,7 @@ public class RateTransposer implements AudioProcessor {
 	public RateTransposer(double factor){
 		this.factor = factor;
 		r= new Resampler(false,0.1,4.0);
+		history = new float[2 * r.getFilterWidth()];
 	}
 	
 	public void setFactor(double tempo){
@@ -65,12 +81,23 @@ public class RateTransposer implements AudioProcessor {
 	@Override
 	public boolean process(AudioEvent audioEvent) {
 		//处理前的音频数据
-		float[] oldAudioDataBlock = audioEvent.getFloatBuffer();
+		float[] oldAudioDataBlock = audioEvent.getFloatBufferArray();
+		int oldAudioDataLength = audioEvent.getBufferSize();
 		//处理后的音频数据保存在下面这个数组里
-		float[] newAudioDataBlock = new float[(int) (oldAudioDataBlock.length * factor)];
+		float[] newAudioDataBlock = new float[(int) (oldAudioDataLength * factor)];
 		//factor大于1是上采样，增加时长，降低音调；小于1是下采样，减少时长，提高音调
-		r.process(factor, oldAudioDataBlock, 0, oldAudioDataBlock.length
-				, false, newAudioDataBlock, 0, newAudioDataBlock.length);
+		int level = qualityLevel;
+		startLevel(level);
+		if(level == 0){
+			r.process(factor, oldAudioDataBlock, audioEvent.getBufferOffset(), oldAudioDataLength
+					, false, newAudioDataBlock, 0, newAudioDataBlock.length);
+		}else{
+			interpolateLinear(oldAudioDataBlock, audioEvent.getBufferOffset(), oldAudioDataLength, newAudioDataBlock, 0, newAudioDataBlock.length);
+			keepHistory(oldAudioDataBlock, audioEvent.getBufferOffset(), oldAudioDataLength);
+		}
+		if(oldAudioDataLength > 0){
+			lastSample = oldAudioDataBlock[audioEvent.getBufferOffset() + oldAudioDataLength - 1];
+		}
 		//The size of the output buffer changes (according to factor). 
 		audioEvent.setFloatBuffer(newAudioDataBlock);
 		//Update overlap offset to match new buffer size
@@ -78,9 +105,115 @@ public class RateTransposer implements AudioProcessor {
 		return true;
 	}
 
+	/**
+	 * Resamples the blocks of a batch, which are consecutive input, in one
+	 * pass into one output array: every event becomes a view on its part of
+	 * it. The factor and quality level apply to the whole batch.
+	 * <p>
+	 * The resampler gets the blocks one by one: once its output array is full
+	 * it stops reading input, so with all blocks in one call the input of a
+	 * second internal buffer could be lost.
+	 */
+	@Override
+	public boolean processBatch(AudioEvent[] audioEvents, boolean[] proceed, int count) {
+		double batchFactor = factor;
+		int outputLength = 0;
+		boolean anyProceeds = false;
+		for(int i = 0 ; i < count ; i++){
+			if(proceed[i]){
+				outputLength += (int) (audioEvents[i].getBufferSize() * batchFactor);
+				anyProceeds = true;
+			}
+		}
+		if(!anyProceeds){
+			return false;
+		}
+		float[] output = new float[outputLength];
+		int level = qualityLevel;
+		startLevel(level);
+		int outputPosition = 0;
+		for(int i = 0 ; i < count ; i++){
+			if(!proceed[i]){
+				continue;
+			}
+			AudioEvent audioEvent = audioEvents[i];
+			float[] input = audioEvent.getFloatBufferArray();
+			int offset = audioEvent.getBufferOffset();
+			int length = audioEvent.getBufferSize();
+			int blockOutputLength = (int) (length * batchFactor);
+			if(level == 0){
+				r.process(batchFactor, input, offset, length, false, output, outputPosition, blockOutputLength);
+			}else{
+				interpolateLinear(input, offset, length, output, outputPosition, blockOutputLength);
+				keepHistory(input, offset, length);
+			}
+			if(length > 0){
+				lastSample = input[offset + length - 1];
+			}
+			audioEvent.setFloatBufferView(output, outputPosition, blockOutputLength);
+			audioEvent.setOverlap((int) (audioEvent.getOverlap() * batchFactor));
+			outputPosition += blockOutputLength;
+		}
+		return true;
+	}
+
+	/**
+	 * Switches the quality level between blocks.
+	 */
+	private void startLevel(int level){
+		if(level == 0 && processedQualityLevel != 0){
+			// the history of the resampler ends where the linear interpolation started, continue from the input since
+			r.prime(history, 0, history.length);
+		}
+		processedQualityLevel = level;
+	}
+
+	/**
+	 * Cheap resampling by linear interpolation, without anti-aliasing. The
+	 * last output sample falls on the last input sample, the first ones are
+	 * interpolated from the last sample of the previous block, so
+	 * consecutive blocks join without a step.
+	 */
+	private void interpolateLinear(float[] input, int offset, int length, float[] output, int outputOffset, int outputLength){
+		double step = (double) length / outputLength;
+		for(int i = 0 ; i < outputLength ; i++){
+			double position = (i + 1) * step - 1;
+			int index = (int) Math.floor(position);
+			float fraction = (float) (position - index);
+			float current = index < 0 ? lastSample : input[offset + index];
+			float next = index + 1 < length ? input[offset + index + 1] : current;
+			output[outputOffset + i] = current + (next - current) * fraction;
+		}
+	}
+
+	/**
+	 * Keeps the end of the input for the resampler, see
+	 * {@link Resampler#prime(float[], int, int)}.
+	 */
+	private void keepHistory(float[] input, int offset, int length){
+		int n = Math.min(length, history.length);
+		System.arraycopy(history, n, history, 0, history.length - n);
+		System.arraycopy(input, offset + length - n, history, history.length - n, n);
+	}
+
 	@Override
 	public void processingFinished() {
 
 	}
+	
+	@Override
+	public int getMaxQualityLevel() {
+		return MAX_QUALITY_LEVEL;
+	}
+	
+	@Override
+	public int getQualityLevel() {
+		return qualityLevel;
+	}
+	
+	@Override
+	public void setQualityLevel(int level) {
+		qualityLevel = Math.max(0, Math.min(MAX_QUALITY_LEVEL, level));
+	}
 
 }
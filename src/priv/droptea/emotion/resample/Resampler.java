@@ -36,6 +36,7 @@
 package priv.droptea.emotion.resample;
 
 import java.nio.FloatBuffer;
+import java.util.Arrays;
 //参考资料https://ccrma.stanford.edu/~jos/resample/Implementation.html
 public class Resampler {
 
@@ -169,6 +170,26 @@ public class Resampler {
         return this.Xoff;
     }
 
+    /**
+     * Starts the session over after the input was resampled by other means,
+     * without building the filter again. The filter continues as if it had
+     * resampled the given input: its end becomes the history, the last filter
+     * width of samples is resampled again by the next call.
+     *
+     * @param history the input before the next batch, only the last two filter widths are used
+     * @param offset  offset of the history in the array
+     * @param length  number of history samples
+     */
+    public void prime(float[] history, int offset, int length) {
+        int n = Math.min(length, 2 * this.Xoff);
+        Arrays.fill(this.X, 0);
+        System.arraycopy(history, offset + length - n, this.X, 2 * this.Xoff - n, n);
+        this.Xread = 2 * this.Xoff;
+        this.Xp = this.Xoff;
+        this.Time = this.Xoff;
+        this.Yp = 0;
+    }
+
     /**
      * Process a batch of samples. There is no guarantee that the input buffer will be drained.
      *
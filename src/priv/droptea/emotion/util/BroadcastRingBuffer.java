@@ -0,0 +1,237 @@
+package priv.droptea.emotion.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A ring buffer for floats with one producer thread and any number of
+ * consumers, each reading all data through a {@link Cursor} of its own. The
+ * data is written once, however many consumers there are.
+ * <p>
+ * The producer never waits for a consumer. When a consumer falls behind by
+ * more than the capacity, the producer moves its cursor forward before
+ * overwriting the data: that consumer loses its oldest data, the others are
+ * not affected. A consumer commits a read with a compare and set on its
+ * cursor, if the producer moved the cursor during the copy the copied data
+ * may be overwritten and the read is retried.
+ * </p>
+ * <p>
+ * Several channels can share the buffer, they are written and read together
+ * and always stay aligned.
+ * </p>
+ * 单生产者多消费者的环形缓冲区：数据只写一次，每个消费者有自己的读取位置，落后太多的消费者丢弃最旧的数据
+ */
+public class BroadcastRingBuffer {
+
+	private final float[][] buffers;
+
+	private final int mask;
+
+	private final AtomicLong writeCounter = new AtomicLong();
+
+	private final CopyOnWriteCursors cursors = new CopyOnWriteCursors();
+
+	private volatile boolean closed;
+
+	/**
+	 * The read position of one consumer.
+	 */
+	public final class Cursor {
+
+		private final AtomicLong readCounter;
+
+		private volatile long droppedSamples;
+
+		private Cursor(long position) {
+			readCounter = new AtomicLong(position);
+		}
+
+		/**
+		 * @return The number of floats per channel that can be read.
+		 */
+		public int available() {
+			return (int) Math.min(writeCounter.get() - readCounter.get(), buffers[0].length);
+		}
+
+		/**
+		 * Reads what is available, from every channel. Only call this from
+		 * the consumer thread of this cursor.
+		 *
+		 * @param targets
+		 *            One target array per channel.
+		 * @param offset
+		 *            The index in the targets of the first float.
+		 * @param length
+		 *            The maximum number of floats per channel to read.
+		 * @return The number of floats per channel actually read.
+		 */
+		public int read(float[][] targets, int offset, int length) {
+			while (true) {
+				long read = readCounter.get();
+				int toRead = (int) Math.min(writeCounter.get() - read, length);
+				int start = (int) (read & mask);
+				int firstPart = Math.min(toRead, buffers[0].length - start);
+				for (int c = 0; c < buffers.length; c++) {
+					System.arraycopy(buffers[c], start, targets[c], offset, firstPart);
+					System.arraycopy(buffers[c], 0, targets[c], offset + firstPart, toRead - firstPart);
+				}
+				if (readCounter.compareAndSet(read, read + toRead)) {
+					return toRead;
+				}
+				// the producer moved the cursor past overwritten data, copy again
+			}
+		}
+
+		/**
+		 * Discards the oldest data without copying it. Only call this from
+		 * the consumer thread of this cursor.
+		 *
+		 * @param length
+		 *            The maximum number of floats per channel to skip.
+		 * @return The number of floats per channel actually skipped.
+		 */
+		public int skip(int length) {
+			while (true) {
+				long read = readCounter.get();
+				int toSkip = (int) Math.min(writeCounter.get() - read, length);
+				if (readCounter.compareAndSet(read, read + toSkip)) {
+					return toSkip;
+				}
+			}
+		}
+
+		/**
+		 * @return The number of floats per channel this consumer lost because
+		 *         it fell behind more than the capacity.
+		 */
+		public long getDroppedSamples() {
+			return droppedSamples;
+		}
+
+		/**
+		 * Stops following the producer, the cursor can not be used any more.
+		 */
+		public void close() {
+			cursors.remove(this);
+		}
+	}
+
+	/**
+	 * @param channels
+	 *            The number of channels.
+	 * @param minimumCapacity
+	 *            The minimum number of floats per channel the buffer should
+	 *            hold, the most a consumer can fall behind.
+	 */
+	public BroadcastRingBuffer(int channels, int minimumCapacity) {
+		if (minimumCapacity < 1 || minimumCapacity > (1 << 30)) {
+			throw new IllegalArgumentException("Capacity out of range: " + minimumCapacity);
+		}
+		int capacity = Integer.highestOneBit(minimumCapacity);
+		if (capacity < minimumCapacity) {
+			capacity <<= 1;
+		}
+		buffers = new float[channels][capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * @return A cursor at the current write position: the consumer gets the
+	 *         data written from now on.
+	 */
+	public Cursor newCursor() {
+		Cursor cursor = new Cursor(writeCounter.get());
+		cursors.add(cursor);
+		return cursor;
+	}
+
+	/**
+	 * Writes data to every channel, moving consumers that are too far behind
+	 * forward first. Only call this from the producer thread.
+	 *
+	 * @param sources
+	 *            One source array per channel.
+	 * @param offset
+	 *            The index of the first float to write.
+	 * @param length
+	 *            The number of floats per channel to write, at most the
+	 *            capacity.
+	 */
+	public void write(float[][] sources, int offset, int length) {
+		int capacity = buffers[0].length;
+		if (length > capacity) {
+			offset += length - capacity;
+			length = capacity;
+		}
+		long write = writeCounter.get();
+		long oldestKept = write + length - capacity;
+		for (Cursor cursor : cursors.snapshot()) {
+			long read;
+			while ((read = cursor.readCounter.get()) < oldestKept) {
+				if (cursor.readCounter.compareAndSet(read, oldestKept)) {
+					cursor.droppedSamples += oldestKept - read;
+					break;
+				}
+			}
+		}
+		int start = (int) (write & mask);
+		int firstPart = Math.min(length, capacity - start);
+		for (int c = 0; c < buffers.length; c++) {
+			System.arraycopy(sources[c], offset, buffers[c], start, firstPart);
+			System.arraycopy(sources[c], offset + firstPart, buffers[c], 0, length - firstPart);
+		}
+		writeCounter.set(write + length);
+	}
+
+	/**
+	 * @return The number of floats per channel the buffer can hold.
+	 */
+	public int capacity() {
+		return buffers[0].length;
+	}
+
+	/**
+	 * Marks the end of the data. Only call this from the producer thread,
+	 * after the last write.
+	 */
+	public void close() {
+		closed = true;
+	}
+
+	/**
+	 * @return True if the producer will not write any more data.
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * The registered cursors, read by the producer without locking.
+	 */
+	private static final class CopyOnWriteCursors {
+
+		private volatile Cursor[] cursors = new Cursor[0];
+
+		synchronized void add(Cursor cursor) {
+			Cursor[] larger = new Cursor[cursors.length + 1];
+			System.arraycopy(cursors, 0, larger, 0, cursors.length);
+			larger[cursors.length] = cursor;
+			cursors = larger;
+		}
+
+		synchronized void remove(Cursor cursor) {
+			for (int i = 0; i < cursors.length; i++) {
+				if (cursors[i] == cursor) {
+					Cursor[] smaller = new Cursor[cursors.length - 1];
+					System.arraycopy(cursors, 0, smaller, 0, i);
+					System.arraycopy(cursors, i + 1, smaller, i, smaller.length - i);
+					cursors = smaller;
+					return;
+				}
+			}
+		}
+
+		Cursor[] snapshot() {
+			return cursors;
+		}
+	}
+}
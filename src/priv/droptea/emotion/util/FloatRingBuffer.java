@@ -0,0 +1,201 @@
+package priv.droptea.emotion.util;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A lock free ring buffer for floats with exactly one producer thread and one
+ * consumer thread. It is used to hand audio from one thread to another
+ * (capture, processing, playback) without locks and without allocating after
+ * construction.
+ * <p>
+ * The read and write counters only ever increase, the position in the array is
+ * the counter modulo the capacity. The capacity is a power of two so the
+ * modulo is a mask. Each counter is only written by its own thread and sits on
+ * its own cache line to prevent false sharing between producer and consumer.
+ * </p>
+ * <p>
+ * Nothing blocks: a write that does not fit only writes what fits, a read only
+ * returns what is available. Waiting, dropping or padding is up to the caller.
+ * </p>
+ *
+ * 单生产者单消费者的无锁环形缓冲区，用于在采集、处理和播放线程之间传递音频数据
+ */
+public class FloatRingBuffer {
+
+	/**
+	 * Padding before and after the counter value keeps the write counter and
+	 * read counter on different cache lines.
+	 */
+	private static class PaddedCounter {
+		long p1, p2, p3, p4, p5, p6, p7;
+		volatile long value;
+		long q1, q2, q3, q4, q5, q6, q7;
+	}
+
+	private static final AtomicLongFieldUpdater<PaddedCounter> VALUE =
+			AtomicLongFieldUpdater.newUpdater(PaddedCounter.class, "value");
+
+	private final float[] buffer;
+
+	private final int mask;
+
+	/**
+	 * Number of floats ever written, only updated by the producer.
+	 */
+	private final PaddedCounter writeCounter = new PaddedCounter();
+
+	/**
+	 * Number of floats ever read (or skipped), only updated by the consumer.
+	 */
+	private final PaddedCounter readCounter = new PaddedCounter();
+
+	/**
+	 * Set by the producer when no more data will be written.
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Creates a ring buffer which holds at least the requested number of
+	 * floats. The capacity is rounded up to the next power of two.
+	 *
+	 * @param minimumCapacity
+	 *            The minimum number of floats the buffer should hold.
+	 */
+	public FloatRingBuffer(int minimumCapacity) {
+		if (minimumCapacity < 1 || minimumCapacity > (1 << 30)) {
+			throw new IllegalArgumentException("Capacity out of range: " + minimumCapacity);
+		}
+		int capacity = Integer.highestOneBit(minimumCapacity);
+		if (capacity < minimumCapacity) {
+			capacity <<= 1;
+		}
+		buffer = new float[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * @return The number of floats the buffer can hold.
+	 */
+	public int capacity() {
+		return buffer.length;
+	}
+
+	/**
+	 * @return The number of floats that can be read. Exact for the consumer, a
+	 *         lower bound for the producer.
+	 */
+	public int available() {
+		return (int) (writeCounter.value - readCounter.value);
+	}
+
+	/**
+	 * @return The number of floats that can be written. Exact for the
+	 *         producer, a lower bound for the consumer.
+	 */
+	public int remaining() {
+		return buffer.length - available();
+	}
+
+	/**
+	 * Writes as much as fits from the source array. Only call this from the
+	 * producer thread.
+	 *
+	 * @param source
+	 *            The data to write.
+	 * @param offset
+	 *            The index of the first float to write.
+	 * @param length
+	 *            The number of floats to write.
+	 * @return The number of floats actually written, less than length if the
+	 *         buffer is full.
+	 */
+	public int write(float[] source, int offset, int length) {
+		long write = writeCounter.value;
+		int free = buffer.length - (int) (write - readCounter.value);
+		int toWrite = Math.min(free, length);
+		int start = (int) (write & mask);
+		int firstPart = Math.min(toWrite, buffer.length - start);
+		System.arraycopy(source, offset, buffer, start, firstPart);
+		System.arraycopy(source, offset + firstPart, buffer, 0, toWrite - firstPart);
+		// ordered store: the data is visible before the new counter value
+		VALUE.lazySet(writeCounter, write + toWrite);
+		return toWrite;
+	}
+
+	/**
+	 * Writes as many zeros as fit, up to the requested length. Only call this
+	 * from the producer thread.
+	 *
+	 * @param length
+	 *            The number of zeros to write.
+	 * @return The number of zeros actually written.
+	 */
+	public int writeSilence(int length) {
+		long write = writeCounter.value;
+		int free = buffer.length - (int) (write - readCounter.value);
+		int toWrite = Math.min(free, length);
+		for (int i = 0; i < toWrite; i++) {
+			buffer[(int) ((write + i) & mask)] = 0;
+		}
+		VALUE.lazySet(writeCounter, write + toWrite);
+		return toWrite;
+	}
+
+	/**
+	 * Reads what is available into the target array. Only call this from the
+	 * consumer thread.
+	 *
+	 * @param target
+	 *            The array to copy the data to.
+	 * @param offset
+	 *            The index in the target of the first float.
+	 * @param length
+	 *            The maximum number of floats to read.
+	 * @return The number of floats actually read, less than length if not
+	 *         enough data is available.
+	 */
+	public int read(float[] target, int offset, int length) {
+		long read = readCounter.value;
+		int toRead = Math.min((int) (writeCounter.value - read), length);
+		int start = (int) (read & mask);
+		int firstPart = Math.min(toRead, buffer.length - start);
+		System.arraycopy(buffer, start, target, offset, firstPart);
+		System.arraycopy(buffer, 0, target, offset + firstPart, toRead - firstPart);
+		VALUE.lazySet(readCounter, read + toRead);
+		return toRead;
+	}
+
+	/**
+	 * Discards the oldest data without copying it. Only call this from the
+	 * consumer thread.
+	 *
+	 * @param length
+	 *            The maximum number of floats to skip.
+	 * @return The number of floats actually skipped.
+	 */
+	public int skip(int length) {
+		long read = readCounter.value;
+		int toSkip = Math.min((int) (writeCounter.value - read), length);
+		VALUE.lazySet(readCounter, read + toSkip);
+		return toSkip;
+	}
+
+	/**
+	 * Marks the end of the data. The producer calls this after its last
+	 * write. Another thread can call it too, e.g. to stop playback, while the
+	 * producer may still write: the producer should check
+	 * {@link #isClosed()} before writing, data written while the close happens
+	 * may never be read.
+	 */
+	public void close() {
+		closed = true;
+	}
+
+	/**
+	 * @return True if the producer will not write any more data. Data written
+	 *         before closing can still be available.
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+}